@@ -0,0 +1,61 @@
+package com.aispl.btswitch;
+
+/**
+ * Bluetooth hardware addresses packed into the lower 48 bits of a long, so
+ * they can be stored and hashed without keeping strings around.
+ */
+public final class BtAddress {
+
+	/** Not a valid address, used for "any device". */
+	public static final long ANY = -1L;
+
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	private BtAddress() {
+	}
+
+	/**
+	 * @param address
+	 *            address as returned by
+	 *            {@link android.bluetooth.BluetoothDevice#getAddress()}, e.g.
+	 *            "00:11:22:AA:BB:CC"
+	 * @return the packed address, {@link #ANY} if it is null or malformed
+	 */
+	public static long pack(String address) {
+		if (address == null || address.length() != 17) {
+			return ANY;
+		}
+		long packed = 0;
+		for (int i = 0; i < 17; i++) {
+			char c = address.charAt(i);
+			if (i % 3 == 2) {
+				if (c != ':') {
+					return ANY;
+				}
+				continue;
+			}
+			int digit = Character.digit(c, 16);
+			if (digit < 0) {
+				return ANY;
+			}
+			packed = (packed << 4) | digit;
+		}
+		return packed;
+	}
+
+	public static String format(long packed) {
+		if (packed == ANY) {
+			return "*";
+		}
+		char[] buf = new char[17];
+		for (int i = 5; i >= 0; i--) {
+			int b = (int) (packed >>> ((5 - i) * 8)) & 0xff;
+			buf[i * 3] = HEX[b >>> 4];
+			buf[i * 3 + 1] = HEX[b & 0xf];
+			if (i < 5) {
+				buf[i * 3 + 2] = ':';
+			}
+		}
+		return new String(buf);
+	}
+}
@@ -0,0 +1,98 @@
+package com.aispl.btswitch;
+
+import java.util.Arrays;
+
+/**
+ * Set of packed addresses (see {@link BtAddress}) using open addressing on a
+ * plain long array, no boxing and no allocation per entry. Not thread safe.
+ */
+public class BtAddressSet {
+	private static final long EMPTY = BtAddress.ANY;
+
+	private long[] table;
+	private int size = 0;
+
+	public BtAddressSet(int expected) {
+		int n = 8;
+		while (n < expected * 2) {
+			n <<= 1;
+		}
+		table = newTable(n);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean contains(long address) {
+		if (address == EMPTY) {
+			return false;
+		}
+		int mask = table.length - 1;
+		for (int i = hash(address) & mask;; i = (i + 1) & mask) {
+			if (table[i] == address) {
+				return true;
+			}
+			if (table[i] == EMPTY) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * @return true if the address was not in the set yet
+	 */
+	public boolean add(long address) {
+		if (address == EMPTY) {
+			return false;
+		}
+		if ((size + 1) * 2 > table.length) {
+			grow();
+		}
+		if (insert(table, address)) {
+			size++;
+			return true;
+		}
+		return false;
+	}
+
+	public void clear() {
+		Arrays.fill(table, EMPTY);
+		size = 0;
+	}
+
+	private void grow() {
+		long[] bigger = newTable(table.length * 2);
+		for (long address : table) {
+			if (address != EMPTY) {
+				insert(bigger, address);
+			}
+		}
+		table = bigger;
+	}
+
+	private static boolean insert(long[] table, long address) {
+		int mask = table.length - 1;
+		for (int i = hash(address) & mask;; i = (i + 1) & mask) {
+			if (table[i] == address) {
+				return false;
+			}
+			if (table[i] == EMPTY) {
+				table[i] = address;
+				return true;
+			}
+		}
+	}
+
+	private static long[] newTable(int n) {
+		long[] table = new long[n];
+		Arrays.fill(table, EMPTY);
+		return table;
+	}
+
+	private static int hash(long address) {
+		// the low bytes of an address differ most, mix them into all bits
+		long h = address * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32);
+	}
+}
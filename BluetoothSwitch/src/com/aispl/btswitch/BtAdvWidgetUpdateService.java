@@ -1,21 +1,38 @@
 package com.aispl.btswitch;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
 
+import android.app.KeyguardManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
 import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.view.View;
 import android.widget.RemoteViews;
 
 /**
@@ -31,6 +48,13 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 
 	public static final String ACTION_WIDGET_SETTINGS_CLICK = "BTSwitchSettingsClick";
 
+	public static final String ACTION_WIDGET_SCAN_CLICK = "BTSwitchScanClick";
+
+	/**
+	 * Time budget of a scan is over, only queued by {@link #sScanTimeout}.
+	 */
+	private static final String ACTION_SCAN_TIMEOUT = "BTSwitchScanTimeout";
+
 	private static Context context = null;
 	Handler handler;
 
@@ -52,11 +76,89 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 	 */
 	private static Queue<Intent> qIntents = new LinkedList<Intent>();
 
+	/**
+	 * Nearby-device scan started from the widget, only used from the update
+	 * thread.
+	 */
+	private static NearbyScan sScan = new NearbyScan();
+
+	/**
+	 * Receiver of the discovery broadcasts, only registered while
+	 * {@link #sScan} is running.
+	 */
+	private static BtScanReceiver sScanReceiver = null;
+
+	/**
+	 * Posts {@link #sScanTimeout} on the main thread. The timer wheel ticks
+	 * are too coarse for the time budget of a scan.
+	 */
+	private static Handler sScanHandler = null;
+
+	private static final Runnable sScanTimeout = new Runnable() {
+		public void run() {
+			handleOnReceive(new Intent(ACTION_SCAN_TIMEOUT));
+			context.startService(new Intent(context,
+					BtAdvWidgetUpdateService.class));
+		}
+	};
+
+	/**
+	 * Flag if {@link BtScreenReceiver} has been registered in this process.
+	 */
+	private static boolean sScreenReceiverRegistered = false;
+
+	/**
+	 * Flag if the timers recorded by a previous process have been scheduled
+	 * again.
+	 */
+	private static boolean sTimersRestored = false;
+
+	/*
+	 * Screen and keyguard state, renders are held back while the widgets can
+	 * not be seen. Only used from the update thread.
+	 */
+	private static boolean sScreenOn = true;
+	private static boolean sKeyguardLocked = false;
+
+	/* renders held back, per host category */
+	private static boolean sHomePending = false;
+	private static boolean sKeyguardPending = false;
+
+	/**
+	 * Host category of each instance, they never change.
+	 */
+	private static SparseIntArray sHostCategories = new SparseIntArray();
+
+	/**
+	 * Instances narrower than this (dp) use the compact layout.
+	 */
+	private static final int COMPACT_MAX_WIDTH = 250;
+
+	/**
+	 * Instances known to use the compact layout (true) or the full layout
+	 * (false), from their size options.
+	 */
+	private static SparseBooleanArray sCompact = new SparseBooleanArray();
+
+	/**
+	 * Flag if {@link #sCompact} has been filled for all instances in this
+	 * process. Instances added later are filled by their first update.
+	 */
+	private static boolean sCompactLoaded = false;
+
+	/**
+	 * Discoverable period assumed if the adapter can not be asked, the
+	 * platform default.
+	 */
+	private static final int DEFAULT_DISCOVERABLE_TIMEOUT = 120;
+
 	public static void handleOnReceive(Intent intent) {
+		long t = BtTrace.begin();
 		synchronized (sLock) {
 			qIntents.add(intent);
 			// Log.d(TAG, "handleOnReceive : currIntent : " + intent);
 		}
+		BtTrace.end(BtTrace.ENQUEUE, t);
 	}
 
 	/**
@@ -79,12 +181,17 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 	 * Poll the next widget update in the queue.
 	 */
 	private static Intent getNextUpdate() {
-		synchronized (sLock) {
-			if (qIntents.peek() == null) {
-				return null;
-			} else {
-				return qIntents.poll();
+		long t = BtTrace.begin();
+		try {
+			synchronized (sLock) {
+				if (qIntents.peek() == null) {
+					return null;
+				} else {
+					return qIntents.poll();
+				}
 			}
+		} finally {
+			BtTrace.end(BtTrace.DEQUEUE, t);
 		}
 	}
 
@@ -102,12 +209,37 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 				sThreadRunning = true;
 				context = getApplicationContext();
 				// Log.d(TAG, "Context : "+ context);
+				registerScreenReceiver();
 				new Thread(this).start();
 
 			}
 		}
 	}
 
+	/**
+	 * Listen to screen changes for the rest of the process lifetime and read
+	 * the current screen state.
+	 */
+	private void registerScreenReceiver() {
+		if (sScreenReceiverRegistered) {
+			return;
+		}
+		sScreenReceiverRegistered = true;
+		context.registerReceiver(new BtScreenReceiver(), BtScreenReceiver
+				.getFilter());
+
+		sScreenOn = ((PowerManager) context
+				.getSystemService(Context.POWER_SERVICE)).isScreenOn();
+		sKeyguardLocked = ((KeyguardManager) context
+				.getSystemService(Context.KEYGUARD_SERVICE)).isKeyguardLocked();
+		if (!sScreenOn || sKeyguardLocked) {
+			// a previous process may have held back renders, which are lost
+			// with it
+			sHomePending = true;
+			sKeyguardPending = true;
+		}
+	}
+
 	/**
 	 * Main thread for running through any requested widget updates until none
 	 * remain. Also sets alarm to perform next update.
@@ -117,12 +249,20 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 		// preparing a looper on current thread
 		// the current thread is being detected implicitly
 		Looper.prepare();
+		restoreTimers();
 		while (hasMoreUpdates()) {
 			Intent currIntent = getNextUpdate();
 
+			long t = BtTrace.begin();
+			int stateVersion = BtWidgetState.getVersion();
 			handleIntent(currIntent);
+			if (stateVersion != BtWidgetState.getVersion()) {
+				BtStateProvider.notifyChange(context);
+			}
+			BtTrace.end(BtTrace.HANDLER, t);
 
 		}
+		BtIdlePolicy.persist(context);
 
 		synchronized (sLock) {
 			sThreadRunning = false;
@@ -137,6 +277,20 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 		Looper.loop();
 	}
 
+	/**
+	 * Schedule the timers of {@link BtIdlePolicy} and {@link BtRules} again
+	 * if the process was killed while they were pending, before an alarm or
+	 * any other intent is handled.
+	 */
+	private static void restoreTimers() {
+		if (sTimersRestored) {
+			return;
+		}
+		sTimersRestored = true;
+		BtIdlePolicy.restore(context);
+		BtRules.restore(context);
+	}
+
 	private void handleIntent(Intent currIntent) {
 		// Log.d(TAG, "Handle Intent" + currIntent);
 		String action = currIntent.getAction();
@@ -169,6 +323,73 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 		if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED)) {
 			handleBtDisConnected(context, currIntent);
 		}
+
+		// Nearby-device scan
+		if (action.equals(ACTION_WIDGET_SCAN_CLICK)) {
+			handleScanClick(context, currIntent);
+		}
+		if (action.equals(BluetoothDevice.ACTION_FOUND)) {
+			handleDeviceFound(context, currIntent);
+		}
+		if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED)) {
+			handleDiscoveryFinished(context, currIntent);
+		}
+		if (action.equals(ACTION_SCAN_TIMEOUT)) {
+			stopScanIfOverBudget();
+		}
+
+		// Timer alarm, run expired timers
+		if (action.equals(BtTimers.ACTION_TIMER_ALARM)) {
+			try {
+				BtTimers.onAlarm(context);
+			} finally {
+				BtTimers.releaseWakeLock();
+			}
+		}
+
+		// Automation rules
+		if (action.equals(BtRules.ACTION_RULE_ADD)
+				|| action.equals(BtRules.ACTION_RULES_CLEAR)) {
+			BtRules.handleIntent(context, currIntent);
+		}
+
+		// Idle auto-disable settings
+		if (action.equals(BtIdlePolicy.ACTION_IDLE_TIMEOUT)) {
+			BtIdlePolicy.handleIntent(context, currIntent);
+		}
+
+		// Screen state, flush held back renders once visible again
+		if (action.equals(Intent.ACTION_SCREEN_OFF)) {
+			sScreenOn = false;
+			sKeyguardLocked = true;
+		}
+		if (action.equals(Intent.ACTION_SCREEN_ON)) {
+			sScreenOn = true;
+			sKeyguardLocked = ((KeyguardManager) context
+					.getSystemService(Context.KEYGUARD_SERVICE))
+					.isKeyguardLocked();
+			flushSuspended();
+		}
+		if (action.equals(Intent.ACTION_USER_PRESENT)) {
+			sScreenOn = true;
+			sKeyguardLocked = false;
+			flushSuspended();
+		}
+
+		// Pipeline tracing
+		if (action.equals(BtTrace.ACTION_TRACE_START)) {
+			BtTrace.start();
+		}
+		if (action.equals(BtTrace.ACTION_TRACE_STOP)) {
+			BtTrace.stop();
+		}
+		if (action.equals(BtTrace.ACTION_TRACE_DUMP)) {
+			dumpTrace(context);
+		}
+		// Widget resized, switch between the compact and the full layout
+		if (action.equals(AppWidgetManager.ACTION_APPWIDGET_OPTIONS_CHANGED)) {
+			handleOptionsChanged(context, currIntent);
+		}
 		//
 		// // Handle Widget Create - an instance of an AppWidget is added to a
 		// host for the first time.
@@ -185,24 +406,24 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 				int[] appWidgetIds = extras
 						.getIntArray(AppWidgetManager.EXTRA_APPWIDGET_IDS);
 				if (appWidgetIds != null) {
-					for (int appWidgetId : appWidgetIds) {
-						// Log.d(TAG, "appWidgetId : " + appWidgetId);
-						updateWidget(appWidgetId);
-					}
+					updateWidgets(appWidgetIds);
 				}
 			} catch (Exception e) {
 				Log.e(TAG, "handleIntent " + e);
 			}
 		}
 
-		// // Handle Widget Delete - Widget instance removed from host.
-		// if (action.equals(AppWidgetManager.ACTION_APPWIDGET_DELETED)) {
-		// Log.d(TAG,"APPWIDGET_DELETE");
-		// //
-		// // Bundle extras = currIntent.getExtras();
-		// // int appWidgetId =
-		// extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID);
-		// }
+		// Handle Widget Delete - Widget instance removed from host.
+		if (action.equals(AppWidgetManager.ACTION_APPWIDGET_DELETED)) {
+			int[] appWidgetIds = currIntent
+					.getIntArrayExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS);
+			if (appWidgetIds != null) {
+				for (int appWidgetId : appWidgetIds) {
+					sCompact.delete(appWidgetId);
+					sHostCategories.delete(appWidgetId);
+				}
+			}
+		}
 		//
 		// // Handle Widget Disabled - Last instance of an AppWidget is removed
 		// from the host.
@@ -211,15 +432,160 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 		// }
 	}
 
-	private void updateWidget(int appWidgetId) {
+	/**
+	 * Render the given instances. The views are built once per layout and
+	 * pushed to all instances using it with a single binder call.
+	 * 
+	 * @param appWidgetIds
+	 */
+	private void updateWidgets(int[] appWidgetIds) {
+		long binderCalls = BtRenderStats.getBinderCalls();
+		updateWidgets(appWidgetIds, null);
+		if (BtRenderStats.getBinderCalls() != binderCalls) {
+			BtRenderStats.update();
+		}
+	}
+
+	/**
+	 * @param appWidgetIds
+	 * @param status
+	 *            text of the status line instead of the one derived from the
+	 *            state, null to keep that
+	 */
+	private void updateWidgets(int[] appWidgetIds, CharSequence status) {
 		AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(this);
 
-		RemoteViews remoteView = new RemoteViews(context.getPackageName(),
-				R.layout.bt_switch_widget_adv_layout);
+		appWidgetIds = getVisible(appWidgetManager, appWidgetIds);
+		if (appWidgetIds.length == 0) {
+			return;
+		}
+
+		SparseArray<List<Integer>> byLayout = new SparseArray<List<Integer>>();
+		for (int appWidgetId : appWidgetIds) {
+			int layout = getLayout(appWidgetId);
+			List<Integer> ids = byLayout.get(layout);
+			if (ids == null) {
+				ids = new ArrayList<Integer>();
+				byLayout.put(layout, ids);
+			}
+			ids.add(appWidgetId);
+		}
+
+		for (int i = 0; i < byLayout.size(); i++) {
+			List<Integer> ids = byLayout.valueAt(i);
+			int[] layoutIds = new int[ids.size()];
+			for (int j = 0; j < layoutIds.length; j++) {
+				layoutIds[j] = ids.get(j);
+			}
 
-		initBtAdvWidget(context, remoteView);
+			long t = BtTrace.begin();
+			RemoteViews remoteView = new RemoteViews(context.getPackageName(),
+					byLayout.keyAt(i));
+			initBtAdvWidget(context, remoteView,
+					byLayout.keyAt(i) == R.layout.bt_switch_widget_adv_layout);
+			if (status != null) {
+				remoteView.setTextViewText(R.id.txtStatus, status);
+			}
+			BtRenderStats.render();
+			BtTrace.end(BtTrace.VIEW_BUILD, t);
 
-		appWidgetManager.updateAppWidget(appWidgetId, remoteView);
+			t = BtTrace.begin();
+			appWidgetManager.updateAppWidget(layoutIds, remoteView);
+			BtRenderStats.binderCall();
+			BtTrace.end(BtTrace.UPDATE_APP_WIDGET, t);
+		}
+	}
+
+	/**
+	 * @param appWidgetId
+	 * @return layout to render the given instance with
+	 */
+	private int getLayout(int appWidgetId) {
+		if (isCompact(AppWidgetManager.getInstance(context), appWidgetId)) {
+			return R.layout.bt_switch_widget_adv_compact_layout;
+		}
+		return R.layout.bt_switch_widget_adv_layout;
+	}
+
+	private boolean isCompact(AppWidgetManager appWidgetManager,
+			int appWidgetId) {
+		int idx = sCompact.indexOfKey(appWidgetId);
+		if (idx >= 0) {
+			return sCompact.valueAt(idx);
+		}
+		boolean compact = isCompact(appWidgetManager
+				.getAppWidgetOptions(appWidgetId));
+		sCompact.put(appWidgetId, compact);
+		return compact;
+	}
+
+	private static boolean isCompact(Bundle options) {
+		if (options == null) {
+			return false;
+		}
+		int minWidth = options
+				.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH, 0);
+		return minWidth > 0 && minWidth < COMPACT_MAX_WIDTH;
+	}
+
+	/**
+	 * @return true if any instance uses the compact layout
+	 */
+	private boolean hasCompact(AppWidgetManager appWidgetManager,
+			ComponentName cn) {
+		if (!sCompactLoaded) {
+			sCompactLoaded = true;
+			for (int appWidgetId : appWidgetManager.getAppWidgetIds(cn)) {
+				isCompact(appWidgetManager, appWidgetId);
+			}
+		}
+		for (int i = 0; i < sCompact.size(); i++) {
+			if (sCompact.valueAt(i)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the instances using (or not using) the compact layout
+	 */
+	private int[] filterCompact(AppWidgetManager appWidgetManager,
+			int[] appWidgetIds, boolean compact) {
+		int[] matching = new int[appWidgetIds.length];
+		int count = 0;
+		for (int appWidgetId : appWidgetIds) {
+			if (isCompact(appWidgetManager, appWidgetId) == compact) {
+				matching[count++] = appWidgetId;
+			}
+		}
+		int[] result = new int[count];
+		System.arraycopy(matching, 0, result, 0, count);
+		return result;
+	}
+
+	/**
+	 * Handle AppWidgetManager.ACTION_APPWIDGET_OPTIONS_CHANGED, re-render the
+	 * instance once if it needs the other layout now.
+	 * 
+	 * @param context
+	 * @param intent
+	 */
+	private void handleOptionsChanged(Context context, Intent intent) {
+		int appWidgetId = intent.getIntExtra(
+				AppWidgetManager.EXTRA_APPWIDGET_ID,
+				AppWidgetManager.INVALID_APPWIDGET_ID);
+		if (appWidgetId == AppWidgetManager.INVALID_APPWIDGET_ID) {
+			return;
+		}
+		boolean compact = isCompact(intent
+				.getBundleExtra(AppWidgetManager.EXTRA_APPWIDGET_OPTIONS));
+		int idx = sCompact.indexOfKey(appWidgetId);
+		if (idx >= 0 && sCompact.valueAt(idx) == compact) {
+			return;
+		}
+		sCompact.put(appWidgetId, compact);
+		updateWidgets(new int[] { appWidgetId });
 	}
 
 	private void handleWidgetClick(Context context, Intent intent) {
@@ -227,16 +593,20 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 				.getDefaultAdapter();
 		if (mBluetoothAdapter == null) {
 			// Device does not support Bluetooth
+			if (!checkScreenOn()) {
+				return;
+			}
+			long t = BtTrace.begin();
 			RemoteViews remoteView = new RemoteViews(context.getPackageName(),
 					R.layout.bt_switch_widget_adv_layout);
 			remoteView.setTextViewText(R.id.txtStatus, context
 					.getString(R.string.noBtDevice));
 			addPendingIntents(context, remoteView);
-			ComponentName cn = new ComponentName(context,
-					BtSwitchAdvWidget.class);
-			AppWidgetManager.getInstance(context).updateAppWidget(cn,
-					remoteView);
+			publish(context, remoteView, t);
 		} else {
+			// the user decides, drop a pending automatic switch off
+			BtIdlePolicy.cancel(context);
+
 			int btState = mBluetoothAdapter.getState();
 			switch (btState) {
 			case BluetoothAdapter.STATE_OFF:
@@ -258,7 +628,39 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 	private void handleBtStateChanged(Context context, Intent intent) {
 		int btState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
 				BluetoothAdapter.ERROR);
+		if (btState != BluetoothAdapter.ERROR) {
+			BtWidgetState.setBtState(btState);
+		}
+
+		CharSequence btAdaptorName = null;
+		switch (btState) {
+		case BluetoothAdapter.STATE_OFF:
+			BtIdlePolicy.cancel(context);
+			sScan.finish();
+			unregisterScanReceiver();
+			break;
+		case BluetoothAdapter.STATE_ON:
+			BtIdlePolicy.rearm(context, BtWidgetState
+					.getConnectedDeviceCount());
 
+			BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+					.getDefaultAdapter();
+			if (mBluetoothAdapter != null) {
+				btAdaptorName = mBluetoothAdapter.getName();
+				if (btAdaptorName != null) {
+					BtWidgetState.setAdaptorName(btAdaptorName.toString());
+				}
+			} else {
+				btAdaptorName = " ";
+			}
+			break;
+		}
+
+		if (btState == BluetoothAdapter.ERROR || !checkScreenOn()) {
+			return;
+		}
+
+		long t = BtTrace.begin();
 		RemoteViews remoteView = new RemoteViews(context.getPackageName(),
 				R.layout.bt_switch_widget_adv_layout);
 
@@ -290,18 +692,8 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 					.getString(R.string.btOff));
 			break;
 		case BluetoothAdapter.STATE_ON:
-			BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
-					.getDefaultAdapter();
-			if (mBluetoothAdapter != null) {
-				CharSequence btAdaptorName = "";
-
-				btAdaptorName = mBluetoothAdapter.getName();
-				if (btAdaptorName != null) {
-					remoteView.setTextViewText(R.id.txtAdaptorName,
-							btAdaptorName);
-				}
-			} else {
-				remoteView.setTextViewText(R.id.txtAdaptorName, " ");
+			if (btAdaptorName != null) {
+				remoteView.setTextViewText(R.id.txtAdaptorName, btAdaptorName);
 			}
 			remoteView.setImageViewResource(R.id.btSwitchAdvWidget,
 					R.drawable.bt_state_on);
@@ -312,13 +704,8 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 			break;
 		}
 
-		if (btState != BluetoothAdapter.ERROR) {
-			addPendingIntents(context, remoteView);
-			ComponentName cn = new ComponentName(context,
-					BtSwitchAdvWidget.class);
-			AppWidgetManager.getInstance(context).updateAppWidget(cn,
-					remoteView);
-		}
+		addPendingIntents(context, remoteView);
+		publish(context, remoteView, t);
 	}
 
 	/**
@@ -332,19 +719,27 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 				.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 		String btRemoteName = btD.getName();
 
+		int connected = BtWidgetState.deviceConnected(btD.getAddress(),
+				btRemoteName);
+		BtIdlePolicy.rearm(context, connected);
+		BtRules.dispatch(context, btD.getAddress(), BtRules.EVENT_CONNECTED);
+
+		if (!checkScreenOn()) {
+			return;
+		}
+		long t = BtTrace.begin();
 		RemoteViews remoteView = new RemoteViews(context.getPackageName(),
 				R.layout.bt_switch_widget_adv_layout);
 
+		String status = context.getString(R.string.btConnected);
 		remoteView.setTextViewText(R.id.txtRemoteDeviceName, btRemoteName);
 		remoteView.setImageViewResource(R.id.statusIcon,
 				R.drawable.bluetooth_connected);
-		remoteView.setTextViewText(R.id.txtStatus, context
-				.getString(R.string.btConnected));
+		remoteView.setTextViewText(R.id.txtStatus, status);
 
 		addPendingIntents(context, remoteView);
 
-		ComponentName cn = new ComponentName(context, BtSwitchAdvWidget.class);
-		AppWidgetManager.getInstance(context).updateAppWidget(cn, remoteView);
+		publish(context, remoteView, status, t);
 	}
 
 	/**
@@ -354,18 +749,154 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 	 * @param intent
 	 */
 	private void handleBtDisConnected(Context context, Intent intent) {
+		BluetoothDevice btD = (BluetoothDevice) intent
+				.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+
+		int connected = btD != null ? BtWidgetState.deviceDisconnected(btD
+				.getAddress()) : BtWidgetState.getConnectedDeviceCount();
+		BtIdlePolicy.rearm(context, connected);
+		if (btD != null) {
+			BtRules.dispatch(context, btD.getAddress(),
+					BtRules.EVENT_DISCONNECTED);
+			if (connected == 0) {
+				BtRules.dispatch(context, btD.getAddress(),
+						BtRules.EVENT_LAST_DISCONNECTED);
+			}
+		}
+
+		if (!checkScreenOn()) {
+			return;
+		}
+		long t = BtTrace.begin();
 		RemoteViews remoteView = new RemoteViews(context.getPackageName(),
 				R.layout.bt_switch_widget_adv_layout);
 
+		String status = context.getString(R.string.btDisConnected);
 		remoteView.setTextViewText(R.id.txtRemoteDeviceName, " ");
 		remoteView.setImageViewResource(R.id.statusIcon, R.drawable.bluetooth);
-		remoteView.setTextViewText(R.id.txtStatus, context
-				.getString(R.string.btDisConnected));
+		remoteView.setTextViewText(R.id.txtStatus, status);
 
 		addPendingIntents(context, remoteView);
 
-		ComponentName cn = new ComponentName(context, BtSwitchAdvWidget.class);
-		AppWidgetManager.getInstance(context).updateAppWidget(cn, remoteView);
+		publish(context, remoteView, status, t);
+	}
+
+	/**
+	 * Start discovery of nearby devices.
+	 * 
+	 * @param context
+	 * @param intent
+	 */
+	private void handleScanClick(Context context, Intent intent) {
+		BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+				.getDefaultAdapter();
+		if (mBluetoothAdapter == null
+				|| mBluetoothAdapter.getState() != BluetoothAdapter.STATE_ON
+				|| sScan.isRunning()) {
+			return;
+		}
+		registerScanReceiver();
+		if (!mBluetoothAdapter.startDiscovery()) {
+			unregisterScanReceiver();
+			return;
+		}
+		sScan.start(SystemClock.elapsedRealtime());
+		renderScan(context);
+
+		// backstop for the time budget if no further device is found
+		if (sScanHandler == null) {
+			sScanHandler = new Handler(Looper.getMainLooper());
+		}
+		sScanHandler.postDelayed(sScanTimeout, NearbyScan.TIME_BUDGET_MILLIS);
+	}
+
+	/**
+	 * Handle BluetoothDevice.ACTION_FOUND
+	 * 
+	 * @param context
+	 * @param intent
+	 */
+	private void handleDeviceFound(Context context, Intent intent) {
+		if (!sScan.isRunning()) {
+			// delivered after the scan ended
+			return;
+		}
+		BluetoothDevice btD = (BluetoothDevice) intent
+				.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+		if (btD == null) {
+			return;
+		}
+		if (sScan.onFound(BtAddress.pack(btD.getAddress()), SystemClock
+				.elapsedRealtime())) {
+			renderScan(context);
+		}
+		stopScanIfOverBudget();
+	}
+
+	/**
+	 * Handle BluetoothAdapter.ACTION_DISCOVERY_FINISHED
+	 * 
+	 * @param context
+	 * @param intent
+	 */
+	private void handleDiscoveryFinished(Context context, Intent intent) {
+		unregisterScanReceiver();
+		if (sScan.finish()) {
+			renderScan(context);
+		}
+	}
+
+	private static void registerScanReceiver() {
+		if (sScanReceiver == null) {
+			sScanReceiver = new BtScanReceiver();
+			context.registerReceiver(sScanReceiver, BtScanReceiver.getFilter());
+		}
+	}
+
+	private static void unregisterScanReceiver() {
+		if (sScanHandler != null) {
+			sScanHandler.removeCallbacks(sScanTimeout);
+		}
+		if (sScanReceiver != null) {
+			context.unregisterReceiver(sScanReceiver);
+			sScanReceiver = null;
+		}
+	}
+
+	private static void stopScanIfOverBudget() {
+		if (sScan.isOverBudget(SystemClock.elapsedRealtime())) {
+			BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+					.getDefaultAdapter();
+			if (mBluetoothAdapter != null) {
+				// ACTION_DISCOVERY_FINISHED follows
+				mBluetoothAdapter.cancelDiscovery();
+			}
+		}
+	}
+
+	/**
+	 * Show the number of nearby devices found so far.
+	 * 
+	 * @param context
+	 */
+	private void renderScan(Context context) {
+		if (!checkScreenOn()) {
+			return;
+		}
+		long t = BtTrace.begin();
+		RemoteViews remoteView = new RemoteViews(context.getPackageName(),
+				R.layout.bt_switch_widget_adv_layout);
+
+		int count = sScan.getCount();
+		String status = context.getString(
+				sScan.isRunning() ? R.string.btScanning : R.string.btNearby,
+				count);
+		remoteView.setTextViewText(R.id.txtStatus, status);
+		remoteView.setImageViewResource(R.id.statusIcon, R.drawable.bluetooth);
+
+		addPendingIntents(context, remoteView);
+
+		publish(context, remoteView, status, t);
 	}
 
 	/**
@@ -377,6 +908,19 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 	private void handleBtScanModeChanged(Context context, Intent intent) {
 		int btScanMode = intent.getIntExtra(BluetoothAdapter.EXTRA_SCAN_MODE,
 				BluetoothAdapter.ERROR);
+		int previousScanMode = BtWidgetState.getScanMode();
+		BtWidgetState.setScanMode(btScanMode);
+		if (btScanMode == BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE
+				&& previousScanMode != btScanMode) {
+			int timeout = getDiscoverableTimeout();
+			if (timeout > 0) {
+				BtWidgetState.setDiscoverable(SystemClock.elapsedRealtime()
+						+ timeout * 1000L, timeout);
+			} else {
+				// discoverable until switched off, nothing to count down
+				BtWidgetState.setDiscoverable(0, 0);
+			}
+		}
 		String btScanModeTxt = " ";
 
 		switch (btScanMode) {
@@ -393,14 +937,67 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 			btScanModeTxt = context.getString(R.string.btError);
 			break;
 		}
+		if (!checkScreenOn()) {
+			return;
+		}
+		long t = BtTrace.begin();
 		RemoteViews remoteView = new RemoteViews(context.getPackageName(),
 				R.layout.bt_switch_widget_adv_layout);
 		remoteView.setTextViewText(R.id.txtStatus, btScanModeTxt);
 
 		addPendingIntents(context, remoteView);
 
-		ComponentName cn = new ComponentName(context, BtSwitchAdvWidget.class);
-		AppWidgetManager.getInstance(context).updateAppWidget(cn, remoteView);
+		publish(context, remoteView, btScanModeTxt, t);
+	}
+
+	/**
+	 * BluetoothAdapter.getDiscoverableTimeout() is not part of the public API.
+	 * 
+	 * @return length of a discoverable period in seconds, 0 or less if it
+	 *         never times out
+	 */
+	private static int getDiscoverableTimeout() {
+		BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+				.getDefaultAdapter();
+		if (mBluetoothAdapter != null) {
+			try {
+				Method getDiscoverableTimeout = BluetoothAdapter.class
+						.getMethod("getDiscoverableTimeout");
+				return (Integer) getDiscoverableTimeout
+						.invoke(mBluetoothAdapter);
+			} catch (Exception e) {
+				Log.e(TAG, "getDiscoverableTimeout " + e);
+			}
+		}
+		return DEFAULT_DISCOVERABLE_TIMEOUT;
+	}
+
+	/**
+	 * Show the remaining discoverable time. The chronometer is ticked by the
+	 * launcher, so there is no work for us until the scan mode changes again.
+	 * 
+	 * @param remoteView
+	 */
+	private void setDiscoverableCountdown(RemoteViews remoteView) {
+		long until = BtWidgetState.getDiscoverableUntil();
+		if (until <= SystemClock.elapsedRealtime()) {
+			remoteView.setViewVisibility(R.id.chronoDiscoverable, View.GONE);
+			return;
+		}
+		remoteView.setViewVisibility(R.id.chronoDiscoverable, View.VISIBLE);
+		if (Build.VERSION.SDK_INT >= 24) {
+			// Build.VERSION_CODES.N, Chronometer.setCountDown()
+			remoteView.setChronometer(R.id.chronoDiscoverable, until, null,
+					true);
+			remoteView.setBoolean(R.id.chronoDiscoverable, "setCountDown",
+					true);
+		} else {
+			// no count down, show the elapsed time of the whole period
+			int timeout = BtWidgetState.getDiscoverableTimeout();
+			remoteView.setChronometer(R.id.chronoDiscoverable, until
+					- timeout * 1000L, "%s / "
+					+ DateUtils.formatElapsedTime(timeout), true);
+		}
 	}
 
 	/**
@@ -410,41 +1007,51 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 	private void handleAdaptorNameChanged(Context context, Intent intent) {
 		String btLocalName = intent
 				.getStringExtra(BluetoothAdapter.EXTRA_LOCAL_NAME);
+		BtWidgetState.setAdaptorName(btLocalName);
 
+		if (!checkScreenOn()) {
+			return;
+		}
+		long t = BtTrace.begin();
 		RemoteViews remoteView = new RemoteViews(context.getPackageName(),
 				R.layout.bt_switch_widget_adv_layout);
 		remoteView.setTextViewText(R.id.txtAdaptorName, btLocalName);
 
 		addPendingIntents(context, remoteView);
 
-		ComponentName cn = new ComponentName(context, BtSwitchAdvWidget.class);
-		AppWidgetManager.getInstance(context).updateAppWidget(cn, remoteView);
+		publish(context, remoteView, t);
 	}
 
 	/**
+	 * Fill the lines of the widget from {@link BtWidgetState}, without
+	 * querying the adapter.
+	 * 
 	 * @param context
 	 * @param remoteView
+	 * @param full
+	 *            true for the full layout, false for the compact layout
+	 *            without adapter and remote device lines
 	 */
-	private void initBtAdvWidget(Context context, RemoteViews remoteView) {
-		remoteView.setTextViewText(R.id.txtAdaptorName, " ");
-		remoteView.setTextViewText(R.id.txtRemoteDeviceName, " ");
+	private void initBtAdvWidget(Context context, RemoteViews remoteView,
+			boolean full) {
+		if (full) {
+			remoteView.setTextViewText(R.id.txtAdaptorName, " ");
+			remoteView.setTextViewText(R.id.txtRemoteDeviceName, " ");
+		}
 		remoteView.setTextViewText(R.id.txtStatus, " ");
+		BtWidgetState.init();
 
-		// based on the bt state set the image
-		BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
-				.getDefaultAdapter();
-
-		if (mBluetoothAdapter != null) {
-			CharSequence btAdaptorName = "";
-
-			btAdaptorName = mBluetoothAdapter.getName();
-			if (btAdaptorName != null) {
-				remoteView.setTextViewText(R.id.txtAdaptorName, btAdaptorName);
-			} else {
-				remoteView.setTextViewText(R.id.txtAdaptorName, " ");
+		if (BluetoothAdapter.getDefaultAdapter() != null) {
+			if (full) {
+				String btAdaptorName = BtWidgetState.getAdaptorName();
+				if (btAdaptorName != null) {
+					remoteView.setTextViewText(R.id.txtAdaptorName,
+							btAdaptorName);
+				}
 			}
 
-			int btState = mBluetoothAdapter.getState();
+			// based on the bt state set the image
+			int btState = BtWidgetState.getBtState();
 			switch (btState) {
 			case BluetoothAdapter.STATE_TURNING_ON:
 				remoteView.setTextViewText(R.id.txtStatus, context
@@ -463,8 +1070,6 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 						R.drawable.filler38);
 				break;
 			case BluetoothAdapter.STATE_OFF:
-				remoteView.setTextViewText(R.id.txtAdaptorName, " ");
-				remoteView.setTextViewText(R.id.txtRemoteDeviceName, " ");
 				remoteView.setImageViewResource(R.id.btSwitchAdvWidget,
 						R.drawable.bt_state_off);
 				remoteView.setImageViewResource(R.id.statusIcon,
@@ -473,20 +1078,29 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 						.getString(R.string.btOff));
 				break;
 			case BluetoothAdapter.STATE_ON:
-				if (mBluetoothAdapter != null) {
-					btAdaptorName = mBluetoothAdapter.getName();
-					if (btAdaptorName != null) {
-						remoteView.setTextViewText(R.id.txtAdaptorName,
-								btAdaptorName);
-					}
-				}
-
 				remoteView.setImageViewResource(R.id.btSwitchAdvWidget,
 						R.drawable.bt_state_on);
-				remoteView.setImageViewResource(R.id.statusIcon,
-						R.drawable.bluetooth);
-				remoteView.setTextViewText(R.id.txtStatus, context
-						.getString(R.string.btOn));
+				if (BtWidgetState.getConnectedDeviceCount() == 0) {
+					remoteView.setImageViewResource(R.id.statusIcon,
+							R.drawable.bluetooth);
+					remoteView.setTextViewText(R.id.txtStatus, context
+							.getString(R.string.btOn));
+				} else {
+					List<String[]> devices = full ? BtWidgetState
+							.getConnectedDevices() : null;
+					if (full && !devices.isEmpty()) {
+						// show the device connected last
+						String btRemoteName = devices.get(devices.size() - 1)[1];
+						if (btRemoteName != null) {
+							remoteView.setTextViewText(
+									R.id.txtRemoteDeviceName, btRemoteName);
+						}
+					}
+					remoteView.setImageViewResource(R.id.statusIcon,
+							R.drawable.bluetooth_connected);
+					remoteView.setTextViewText(R.id.txtStatus, context
+							.getString(R.string.btConnected));
+				}
 				break;
 			}
 		} else {
@@ -497,9 +1111,203 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 			remoteView.setImageViewResource(R.id.statusIcon,
 					R.drawable.filler38);
 		}
+		setDiscoverableCountdown(remoteView);
 		addPendingIntents(context, remoteView);
 	}
 
+	/**
+	 * Push the views to all instances of the advanced widget.
+	 *
+	 * @param context
+	 * @param remoteView
+	 * @param buildBegin
+	 *            {@link BtTrace#begin()} of building the views
+	 */
+	private void publish(Context context, RemoteViews remoteView,
+			long buildBegin) {
+		publish(context, remoteView, null, buildBegin);
+	}
+
+	/**
+	 * @param status
+	 *            text of the status line in <code>remoteView</code> if it
+	 *            differs from the one derived from the state, so the compact
+	 *            instances show it as well
+	 */
+	private void publish(Context context, RemoteViews remoteView,
+			CharSequence status, long buildBegin) {
+		setDiscoverableCountdown(remoteView);
+		BtTrace.end(BtTrace.VIEW_BUILD, buildBegin);
+		if (!checkScreenOn()) {
+			return;
+		}
+
+		AppWidgetManager appWidgetManager = AppWidgetManager
+				.getInstance(context);
+		ComponentName cn = new ComponentName(context, BtSwitchAdvWidget.class);
+		long binderCalls = BtRenderStats.getBinderCalls();
+		long t = BtTrace.begin();
+		if (sScreenOn && !sKeyguardLocked
+				&& !hasCompact(appWidgetManager, cn)) {
+			BtRenderStats.render();
+			appWidgetManager.updateAppWidget(cn, remoteView);
+			BtRenderStats.binderCall();
+		} else {
+			// only the visible instances with the full layout get these
+			// views, compact instances are rendered from the state and the
+			// status line of these views
+			int[] appWidgetIds = getVisible(appWidgetManager,
+					appWidgetManager.getAppWidgetIds(cn));
+			int[] fullIds = filterCompact(appWidgetManager, appWidgetIds,
+					false);
+			if (fullIds.length > 0) {
+				BtRenderStats.render();
+				appWidgetManager.updateAppWidget(fullIds, remoteView);
+				BtRenderStats.binderCall();
+			}
+			int[] compactIds = filterCompact(appWidgetManager,
+					appWidgetIds, true);
+			if (compactIds.length > 0) {
+				updateWidgets(compactIds, status);
+			}
+		}
+		BtTrace.end(BtTrace.UPDATE_APP_WIDGET, t);
+		if (BtRenderStats.getBinderCalls() != binderCalls) {
+			BtRenderStats.update();
+		}
+	}
+
+	/**
+	 * Check if any instance can be seen before building views for it. While
+	 * the screen is off all instances are marked to be rendered by
+	 * {@link #flushSuspended()}.
+	 * 
+	 * @return false if the render is to be skipped
+	 */
+	private boolean checkScreenOn() {
+		if (sScreenOn) {
+			return true;
+		}
+		sHomePending = true;
+		sKeyguardPending = true;
+		BtRenderStats.suppressed();
+		return false;
+	}
+
+	/**
+	 * Filter the instances that can be seen right now. The others are marked
+	 * to be rendered by {@link #flushSuspended()}.
+	 * 
+	 * @param appWidgetManager
+	 * @param appWidgetIds
+	 * @return the visible instances
+	 */
+	private int[] getVisible(AppWidgetManager appWidgetManager,
+			int[] appWidgetIds) {
+		if (sScreenOn && !sKeyguardLocked) {
+			return appWidgetIds;
+		}
+
+		int[] visible = new int[appWidgetIds.length];
+		int count = 0;
+		for (int appWidgetId : appWidgetIds) {
+			boolean keyguard = getHostCategory(appWidgetManager, appWidgetId) == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
+			if (sScreenOn && keyguard) {
+				visible[count++] = appWidgetId;
+			} else if (keyguard) {
+				sKeyguardPending = true;
+			} else {
+				sHomePending = true;
+			}
+		}
+		if (count < appWidgetIds.length) {
+			BtRenderStats.suppressed();
+		}
+
+		int[] result = new int[count];
+		System.arraycopy(visible, 0, result, 0, count);
+		return result;
+	}
+
+	private int getHostCategory(AppWidgetManager appWidgetManager,
+			int appWidgetId) {
+		int category = sHostCategories.get(appWidgetId, -1);
+		if (category < 0) {
+			category = appWidgetManager.getAppWidgetOptions(appWidgetId)
+					.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY,
+							AppWidgetProviderInfo.WIDGET_CATEGORY_HOME_SCREEN);
+			sHostCategories.put(appWidgetId, category);
+		}
+		return category;
+	}
+
+	/**
+	 * Render the instances that became visible and missed renders, once.
+	 */
+	private void flushSuspended() {
+		boolean flushKeyguard = sKeyguardPending && sScreenOn;
+		boolean flushHome = sHomePending && sScreenOn && !sKeyguardLocked;
+		if (!flushKeyguard && !flushHome) {
+			return;
+		}
+
+		AppWidgetManager appWidgetManager = AppWidgetManager
+				.getInstance(context);
+		int[] appWidgetIds = appWidgetManager
+				.getAppWidgetIds(new ComponentName(context,
+						BtSwitchAdvWidget.class));
+		int[] flush = new int[appWidgetIds.length];
+		int count = 0;
+		for (int appWidgetId : appWidgetIds) {
+			boolean keyguard = getHostCategory(appWidgetManager, appWidgetId) == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
+			if (keyguard ? flushKeyguard : flushHome) {
+				flush[count++] = appWidgetId;
+			}
+		}
+		if (flushKeyguard) {
+			sKeyguardPending = false;
+		}
+		if (flushHome) {
+			sHomePending = false;
+		}
+
+		if (count > 0) {
+			int[] ids = new int[count];
+			System.arraycopy(flush, 0, ids, 0, count);
+			updateWidgets(ids);
+		}
+	}
+
+	/**
+	 * Write the recorded trace to <code>btswitch-trace.json</code> in the
+	 * external files dir of the app (internal files dir if not available).
+	 *
+	 * @param context
+	 */
+	private void dumpTrace(Context context) {
+		File dir = context.getExternalFilesDir(null);
+		if (dir == null) {
+			dir = context.getFilesDir();
+		}
+		File file = new File(dir, "btswitch-trace.json");
+		Writer out = null;
+		try {
+			out = new FileWriter(file);
+			BtTrace.export(out);
+			Log.i(TAG, "trace written to " + file);
+		} catch (IOException e) {
+			Log.e(TAG, "dumpTrace " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
 	private void addPendingIntents(Context context, RemoteViews remoteView) {
 		// set up intent for widget click
 		Intent btActivate = new Intent(context, BtSwitchAdvWidget.class);
@@ -521,6 +1329,18 @@ public class BtAdvWidgetUpdateService extends Service implements Runnable {
 
 		remoteView.setOnClickPendingIntent(R.id.btSwitchSettings,
 				actionPendingIntent1);
+
+		// set up intent for a nearby-device scan from the status line
+		Intent btScan = new Intent(context, BtSwitchAdvWidget.class);
+		btScan.setAction(ACTION_WIDGET_SCAN_CLICK);
+
+		PendingIntent actionPendingIntent2 = PendingIntent.getBroadcast(
+				context, 0, btScan, 0);
+
+		remoteView.setOnClickPendingIntent(R.id.statusIcon,
+				actionPendingIntent2);
+		remoteView.setOnClickPendingIntent(R.id.txtStatus,
+				actionPendingIntent2);
 	}
 
 	@Override
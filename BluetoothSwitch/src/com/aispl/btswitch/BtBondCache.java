@@ -0,0 +1,193 @@
+package com.aispl.btswitch;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+
+/**
+ * Process wide cache of the bonded devices shown by {@link BtSwitchListWidget}.
+ * The list is only queried from the adapter again after
+ * {@link #invalidate()}, i.e. on ACTION_BOND_STATE_CHANGED and when Bluetooth
+ * is switched on. A list read while the adapter is not on is empty and never
+ * cached. Devices connected before this process started are seeded from the
+ * headset and A2DP profiles when the list is loaded. Connection changes
+ * only bump the version of the affected entry, so list views can keep the
+ * rows of all other devices.
+ */
+public final class BtBondCache {
+
+	/**
+	 * One bonded device.
+	 */
+	public static final class Entry {
+		public final String address;
+		public final String name;
+		public final int majorClass;
+		private boolean connected;
+		private int version = 0;
+
+		private Entry(String address, String name, int majorClass) {
+			this.address = address;
+			this.name = name;
+			this.majorClass = majorClass;
+		}
+
+		public synchronized boolean isConnected() {
+			return connected;
+		}
+
+		/**
+		 * @return a number that changes whenever the row of this device has
+		 *         to be rebuilt
+		 */
+		public synchronized int getVersion() {
+			return version;
+		}
+
+		private synchronized boolean setConnected(boolean connected) {
+			if (this.connected == connected) {
+				return false;
+			}
+			this.connected = connected;
+			version++;
+			return true;
+		}
+	}
+
+	private static List<Entry> sDevices = null;
+
+	/**
+	 * Connected addresses, kept across invalidations of the list.
+	 */
+	private static Set<String> sConnected = new HashSet<String>();
+
+	/**
+	 * Flag if the profiles have been asked for connected devices in this
+	 * process, later changes are seen as ACL broadcasts.
+	 */
+	private static boolean sSeeded = false;
+
+	private BtBondCache() {
+	}
+
+	/**
+	 * @return the bonded devices, read from the adapter only if the cache was
+	 *         invalidated
+	 */
+	public static synchronized List<Entry> getDevices(Context context) {
+		if (sDevices != null) {
+			return sDevices;
+		}
+		BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+				.getDefaultAdapter();
+		if (mBluetoothAdapter == null
+				|| mBluetoothAdapter.getState() != BluetoothAdapter.STATE_ON) {
+			// the bonded devices are only reported while the adapter is on
+			return new ArrayList<Entry>();
+		}
+		sDevices = load(mBluetoothAdapter);
+		seedConnected(context, mBluetoothAdapter);
+		return sDevices;
+	}
+
+	public static synchronized void invalidate() {
+		sDevices = null;
+	}
+
+	/**
+	 * Record an ACL change of a device.
+	 *
+	 * @return true if the row of a device in the cached list changed, or if
+	 *         the list has not been loaded in this process (the launcher may
+	 *         still show rows built by a previous one)
+	 */
+	public static synchronized boolean setConnected(String address,
+			boolean connected) {
+		if (connected) {
+			sConnected.add(address);
+		} else {
+			sConnected.remove(address);
+		}
+		if (sDevices == null) {
+			return true;
+		}
+		for (Entry entry : sDevices) {
+			if (entry.address.equals(address)) {
+				return entry.setConnected(connected);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Bluetooth was switched off, nothing is connected any more.
+	 */
+	public static synchronized void clearConnected() {
+		sConnected.clear();
+		if (sDevices != null) {
+			for (Entry entry : sDevices) {
+				entry.setConnected(false);
+			}
+		}
+	}
+
+	/**
+	 * Ask the headset and A2DP profiles for their connected devices. The
+	 * answers arrive asynchronously on the main thread; the list widget is
+	 * notified if a row changed.
+	 */
+	private static void seedConnected(final Context context,
+			BluetoothAdapter mBluetoothAdapter) {
+		if (sSeeded) {
+			return;
+		}
+		sSeeded = true;
+		BluetoothProfile.ServiceListener listener = new BluetoothProfile.ServiceListener() {
+			public void onServiceConnected(int profile, BluetoothProfile proxy) {
+				boolean changed = false;
+				for (BluetoothDevice btD : proxy.getConnectedDevices()) {
+					changed |= setConnected(btD.getAddress(), true);
+				}
+				BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+				if (adapter != null) {
+					adapter.closeProfileProxy(profile, proxy);
+				}
+				if (changed) {
+					BtSwitchListWidget.notifyDataChanged(context);
+				}
+			}
+
+			public void onServiceDisconnected(int profile) {
+			}
+		};
+		mBluetoothAdapter.getProfileProxy(context, listener,
+				BluetoothProfile.HEADSET);
+		mBluetoothAdapter.getProfileProxy(context, listener,
+				BluetoothProfile.A2DP);
+	}
+
+	private static List<Entry> load(BluetoothAdapter mBluetoothAdapter) {
+		List<Entry> devices = new ArrayList<Entry>();
+		Set<BluetoothDevice> bonded = mBluetoothAdapter.getBondedDevices();
+		if (bonded == null) {
+			return devices;
+		}
+		for (BluetoothDevice btD : bonded) {
+			BluetoothClass btClass = btD.getBluetoothClass();
+			String name = btD.getName();
+			Entry entry = new Entry(btD.getAddress(), name != null ? name
+					: btD.getAddress(), btClass != null ? btClass
+					.getMajorDeviceClass() : 0);
+			entry.connected = sConnected.contains(entry.address);
+			devices.add(entry);
+		}
+		return devices;
+	}
+}
@@ -0,0 +1,39 @@
+package com.aispl.btswitch;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Forwards the management broadcasts of the app, the automation rules of
+ * {@link BtRules}, the idle period of {@link BtIdlePolicy} and the tracing of
+ * {@link BtTrace}, to {@link BtAdvWidgetUpdateService}. Unlike the widget
+ * receivers it is guarded by the signature permission {@link #PERMISSION}, so
+ * only apps signed with the same key can send them. The widget receivers
+ * drop these actions.
+ */
+public class BtControlReceiver extends BroadcastReceiver {
+
+	public static final String PERMISSION = "com.aispl.btswitch.permission.CONTROL";
+
+	/**
+	 * @return true if the action may only be sent through this receiver
+	 */
+	public static boolean isControlAction(String action) {
+		return BtRules.ACTION_RULE_ADD.equals(action)
+				|| BtRules.ACTION_RULES_CLEAR.equals(action)
+				|| BtTrace.ACTION_TRACE_START.equals(action)
+				|| BtTrace.ACTION_TRACE_STOP.equals(action)
+				|| BtTrace.ACTION_TRACE_DUMP.equals(action)
+				|| BtIdlePolicy.ACTION_IDLE_TIMEOUT.equals(action);
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if (!isControlAction(intent.getAction())) {
+			return;
+		}
+		BtAdvWidgetUpdateService.handleOnReceive(intent);
+		context.startService(new Intent(context, BtAdvWidgetUpdateService.class));
+	}
+}
@@ -0,0 +1,135 @@
+package com.aispl.btswitch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.bluetooth.BluetoothClass;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.RemoteViews;
+import android.widget.RemoteViewsService;
+
+/**
+ * Supplies the rows of {@link BtSwitchListWidget}. Rows are built lazily when
+ * the launcher asks for them and kept until the connection state of their
+ * device changes, so a data change only rebuilds the rows that differ.
+ */
+public class BtDeviceListService extends RemoteViewsService {
+
+	@Override
+	public RemoteViewsFactory onGetViewFactory(Intent intent) {
+		return new DeviceListFactory(getApplicationContext());
+	}
+
+	private static class DeviceListFactory implements RemoteViewsFactory {
+		private final Context context;
+
+		private List<BtBondCache.Entry> devices = new ArrayList<BtBondCache.Entry>();
+
+		/* built rows and the entry version they were built for */
+		private final Map<String, RemoteViews> rows = new HashMap<String, RemoteViews>();
+		private final Map<String, Integer> rowVersions = new HashMap<String, Integer>();
+
+		DeviceListFactory(Context context) {
+			this.context = context;
+		}
+
+		public void onCreate() {
+		}
+
+		public void onDataSetChanged() {
+			List<BtBondCache.Entry> current = BtBondCache.getDevices(context);
+			if (current != devices) {
+				// bond list was reloaded, the old rows belong to old entries
+				rows.clear();
+				rowVersions.clear();
+				devices = current;
+			}
+		}
+
+		public void onDestroy() {
+			rows.clear();
+			rowVersions.clear();
+		}
+
+		public int getCount() {
+			return devices.size();
+		}
+
+		public RemoteViews getViewAt(int position) {
+			if (position >= devices.size()) {
+				return null;
+			}
+			BtBondCache.Entry entry = devices.get(position);
+			int version = entry.getVersion();
+			RemoteViews row = rows.get(entry.address);
+			Integer rowVersion = rowVersions.get(entry.address);
+			if (row == null || rowVersion == null
+					|| rowVersion.intValue() != version) {
+				row = buildRow(entry);
+				rows.put(entry.address, row);
+				rowVersions.put(entry.address, Integer.valueOf(version));
+			}
+			return row;
+		}
+
+		public RemoteViews getLoadingView() {
+			return null;
+		}
+
+		public int getViewTypeCount() {
+			return 1;
+		}
+
+		public long getItemId(int position) {
+			if (position >= devices.size()) {
+				return position;
+			}
+			return BtAddress.pack(devices.get(position).address);
+		}
+
+		public boolean hasStableIds() {
+			return true;
+		}
+
+		private RemoteViews buildRow(BtBondCache.Entry entry) {
+			RemoteViews row = new RemoteViews(context.getPackageName(),
+					R.layout.bt_device_row);
+
+			int icon;
+			switch (entry.majorClass) {
+			case BluetoothClass.Device.Major.AUDIO_VIDEO:
+				icon = R.drawable.headphone;
+				break;
+			case BluetoothClass.Device.Major.PHONE:
+				icon = R.drawable.smartphone;
+				break;
+			default:
+				icon = R.drawable.bluetooth;
+				break;
+			}
+			row.setImageViewResource(R.id.rowIcon, icon);
+			row.setTextViewText(R.id.rowName, entry.name);
+
+			if (entry.isConnected()) {
+				row.setImageViewResource(R.id.rowStatusIcon,
+						R.drawable.bluetooth_connected);
+				row.setTextViewText(R.id.rowStatus, context
+						.getString(R.string.btDeviceConnected));
+			} else {
+				row.setImageViewResource(R.id.rowStatusIcon,
+						R.drawable.filler38);
+				row.setTextViewText(R.id.rowStatus, context
+						.getString(R.string.btDeviceNotConnected));
+			}
+
+			// completes the template of the list with the tapped device
+			Intent fillIn = new Intent();
+			fillIn.putExtra(BtSwitchListWidget.EXTRA_ADDRESS, entry.address);
+			row.setOnClickFillInIntent(R.id.deviceRow, fillIn);
+			return row;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.aispl.btswitch;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+/**
+ * Opt-in policy to switch Bluetooth off after it has been idle (no ACL
+ * connection) for a while. Disabled unless {@link #PREF_IDLE_TIMEOUT} is set
+ * to a positive number of minutes in the default shared preferences, which is
+ * done with an explicit {@link #ACTION_IDLE_TIMEOUT} broadcast to
+ * {@link BtControlReceiver}.
+ */
+public final class BtIdlePolicy {
+	private static final String TAG = "BTS I :";
+
+	public static final String PREF_IDLE_TIMEOUT = "idleAutoDisableMinutes";
+
+	/**
+	 * Set the idle period. Extra: {@link #EXTRA_MINUTES}, 0 or missing to
+	 * disable the policy.
+	 */
+	public static final String ACTION_IDLE_TIMEOUT = "BTSwitchIdleTimeout";
+
+	public static final String EXTRA_MINUTES = "minutes";
+
+	/**
+	 * Deadline of the idle period (elapsed realtime) in
+	 * {@link BtTimers#getPrefs(Context)}, so it survives the process. Written
+	 * by {@link #persist(Context)} only.
+	 */
+	private static final String PREF_IDLE_DEADLINE = "idleDeadline";
+
+	private static volatile TimerWheel.Timeout sTimeout = null;
+
+	/**
+	 * Deadline of {@link #sTimeout}, -1 if none.
+	 */
+	private static volatile long sDeadline = -1;
+
+	/**
+	 * Deadline last written to {@link #PREF_IDLE_DEADLINE}, -1 if none.
+	 */
+	private static long sPersistedDeadline = -1;
+
+	private BtIdlePolicy() {
+	}
+
+	/**
+	 * Restart the idle period. Nothing is scheduled while a device is
+	 * connected or if the policy is disabled.
+	 *
+	 * @param context
+	 * @param connectedDevices
+	 *            number of currently connected remote devices, or
+	 *            {@link BtWidgetState#UNKNOWN}
+	 */
+	public static synchronized void rearm(Context context, int connectedDevices) {
+		cancel(context);
+
+		long idleMillis = getIdleTimeout(context);
+		if (idleMillis <= 0 || connectedDevices != 0) {
+			return;
+		}
+		schedule(context, SystemClock.elapsedRealtime() + idleMillis);
+	}
+
+	/**
+	 * Schedule the idle period recorded by a previous process again.
+	 */
+	public static synchronized void restore(Context context) {
+		long deadline = BtTimers.getPrefs(context).getLong(PREF_IDLE_DEADLINE,
+				-1);
+		sPersistedDeadline = deadline;
+		if (sTimeout == null && deadline >= 0) {
+			schedule(context, deadline);
+		}
+	}
+
+	/**
+	 * Drop a pending idle timeout, e.g. after the user toggled Bluetooth.
+	 */
+	public static synchronized void cancel(Context context) {
+		if (sTimeout != null) {
+			sTimeout.cancel();
+			sTimeout = null;
+		}
+		sDeadline = -1;
+	}
+
+	/**
+	 * Record the pending deadline for a later process. Called when the update
+	 * service stops; skips the write while the deadline moved by no more than
+	 * a timer tick, which is all ACL flaps in a row would do.
+	 */
+	public static synchronized void persist(Context context) {
+		if (sDeadline == sPersistedDeadline) {
+			return;
+		}
+		if (sDeadline < 0) {
+			BtTimers.getPrefs(context).edit().remove(PREF_IDLE_DEADLINE)
+					.apply();
+		} else if (sPersistedDeadline < 0
+				|| Math.abs(sDeadline - sPersistedDeadline) > BtTimers.TICK_MILLIS) {
+			BtTimers.getPrefs(context).edit().putLong(PREF_IDLE_DEADLINE,
+					sDeadline).apply();
+		} else {
+			return;
+		}
+		sPersistedDeadline = sDeadline;
+	}
+
+	private static void schedule(final Context context, long deadline) {
+		sDeadline = deadline;
+		sTimeout = BtTimers.schedule(context, new Runnable() {
+			public void run() {
+				// on the update thread, like every other caller
+				sTimeout = null;
+				sDeadline = -1;
+				disableIfIdle();
+			}
+		}, deadline - SystemClock.elapsedRealtime());
+	}
+
+	/**
+	 * Handle {@link #ACTION_IDLE_TIMEOUT}: store the idle period and restart
+	 * it.
+	 */
+	public static synchronized void handleIntent(Context context,
+			Intent intent) {
+		int minutes = Math.max(0, intent.getIntExtra(EXTRA_MINUTES, 0));
+		PreferenceManager.getDefaultSharedPreferences(context).edit().putInt(
+				PREF_IDLE_TIMEOUT, minutes).commit();
+		Log.i(TAG, "idle timeout : " + minutes + " min");
+
+		BtWidgetState.init();
+		if (BtWidgetState.getBtState() == BluetoothAdapter.STATE_ON) {
+			rearm(context, BtWidgetState.getConnectedDeviceCount());
+		} else {
+			cancel(context);
+		}
+	}
+
+	private static long getIdleTimeout(Context context) {
+		int minutes = PreferenceManager.getDefaultSharedPreferences(context)
+				.getInt(PREF_IDLE_TIMEOUT, 0);
+		return minutes * 60L * 1000L;
+	}
+
+	private static void disableIfIdle() {
+		// possibly in a new process, where a device may still be connected
+		BtWidgetState.init();
+		if (BtWidgetState.getConnectedDeviceCount() != 0) {
+			return;
+		}
+		BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+				.getDefaultAdapter();
+		if (mBluetoothAdapter != null
+				&& mBluetoothAdapter.getState() == BluetoothAdapter.STATE_ON) {
+			Log.i(TAG, "idle timeout, disabling Bluetooth");
+			mBluetoothAdapter.disable();
+		}
+	}
+}
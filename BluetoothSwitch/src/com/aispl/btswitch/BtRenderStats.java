@@ -0,0 +1,63 @@
+package com.aispl.btswitch;
+
+/**
+ * Counters of the widget renders of {@link BtAdvWidgetUpdateService}, served
+ * by {@link BtStateProvider} under <code>stats</code>.
+ */
+public final class BtRenderStats {
+
+	private static long sUpdates = 0;
+
+	private static long sRenders = 0;
+
+	private static long sBinderCalls = 0;
+
+	private static long sSuppressed = 0;
+
+	private BtRenderStats() {
+	}
+
+	/**
+	 * A widget update was pushed, with one or more updateAppWidget() calls.
+	 */
+	public static synchronized void update() {
+		sUpdates++;
+	}
+
+	/**
+	 * A RemoteViews was built.
+	 */
+	public static synchronized void render() {
+		sRenders++;
+	}
+
+	/**
+	 * An updateAppWidget() call was made.
+	 */
+	public static synchronized void binderCall() {
+		sBinderCalls++;
+	}
+
+	/**
+	 * A render was held back because the widgets could not be seen.
+	 */
+	public static synchronized void suppressed() {
+		sSuppressed++;
+	}
+
+	public static synchronized long getUpdates() {
+		return sUpdates;
+	}
+
+	public static synchronized long getRenders() {
+		return sRenders;
+	}
+
+	public static synchronized long getBinderCalls() {
+		return sBinderCalls;
+	}
+
+	public static synchronized long getSuppressed() {
+		return sSuppressed;
+	}
+}
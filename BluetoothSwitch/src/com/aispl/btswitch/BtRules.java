@@ -0,0 +1,403 @@
+package com.aispl.btswitch;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Automation rules triggered by the ACL events of the advanced widget, e.g.
+ * "when the car kit connects, stop being discoverable" or "when the last
+ * device disconnects, switch Bluetooth off after 5 minutes".
+ * <p>
+ * Rules are stored in a small binary file and loaded once per process into an
+ * index keyed by device address and event, so an event only looks at the
+ * rules that can match it. They are managed with explicit broadcasts to
+ * {@link BtControlReceiver}, see {@link #ACTION_RULE_ADD} and
+ * {@link #ACTION_RULES_CLEAR}, which only apps signed with the same key can
+ * send.
+ */
+public final class BtRules {
+	private static final String TAG = "BTS R :";
+
+	/**
+	 * Add a rule. Extras: {@link #EXTRA_ADDRESS} (optional, any device if
+	 * missing), {@link #EXTRA_EVENT}, {@link #EXTRA_ACTION} and
+	 * {@link #EXTRA_DELAY} (optional, seconds).
+	 */
+	public static final String ACTION_RULE_ADD = "BTSwitchRuleAdd";
+
+	public static final String ACTION_RULES_CLEAR = "BTSwitchRulesClear";
+
+	public static final String EXTRA_ADDRESS = "address";
+	public static final String EXTRA_EVENT = "event";
+	public static final String EXTRA_ACTION = "action";
+	public static final String EXTRA_DELAY = "delay";
+
+	/* events, values of EXTRA_EVENT are the names */
+	public static final int EVENT_CONNECTED = 0;
+	public static final int EVENT_DISCONNECTED = 1;
+	public static final int EVENT_LAST_DISCONNECTED = 2;
+
+	private static final String[] EVENT_NAMES = { "connected",
+			"disconnected", "lastDisconnected" };
+
+	/* actions, values of EXTRA_ACTION are the names */
+	public static final int DO_DISABLE = 0;
+	public static final int DO_NOT_DISCOVERABLE = 1;
+
+	private static final String[] ACTION_NAMES = { "disable",
+			"notDiscoverable" };
+
+	private static final String RULES_FILE = "rules.bin";
+
+	private static final int FILE_VERSION = 1;
+
+	/**
+	 * Delayed actions are recorded in {@link BtTimers#getPrefs(Context)} under
+	 * this prefix, followed by the event of their rule, the deadline and the
+	 * action, so they survive the process. The value is the action.
+	 */
+	private static final String PREF_PENDING = "rule.";
+
+
+	/**
+	 * One rule, as stored in {@link #RULES_FILE}.
+	 */
+	static final class Rule {
+		final long address;
+		final int event;
+		final int action;
+		final int delaySeconds;
+
+		Rule(long address, int event, int action, int delaySeconds) {
+			this.address = address;
+			this.event = event;
+			this.action = action;
+			this.delaySeconds = delaySeconds;
+		}
+
+		@Override
+		public String toString() {
+			return BtAddress.format(address) + " " + EVENT_NAMES[event] + " -> "
+					+ ACTION_NAMES[action] + " +" + delaySeconds + "s";
+		}
+	}
+
+	private static final Rule[] NONE = new Rule[0];
+
+	private static List<Rule> sRules = null;
+
+	/**
+	 * Rules by {@link #key(long, int)}.
+	 */
+	private static Map<Long, Rule[]> sIndex = null;
+
+	/**
+	 * Delayed actions of disconnect rules that have not run yet. They are
+	 * dropped when a device connects again; those of connect rules always
+	 * run.
+	 */
+	private static List<TimerWheel.Timeout> sPending = new ArrayList<TimerWheel.Timeout>();
+
+	private static boolean sRestored = false;
+
+	private BtRules() {
+	}
+
+	/**
+	 * Run the rules for an ACL event of the given device.
+	 *
+	 * @param context
+	 * @param address
+	 *            address of the remote device
+	 * @param event
+	 *            one of the EVENT_ constants
+	 */
+	public static synchronized void dispatch(Context context, String address,
+			int event) {
+		load(context);
+
+		if (event == EVENT_CONNECTED) {
+			cancelPending(context);
+		}
+		if (sIndex.isEmpty()) {
+			return;
+		}
+
+		long packed = BtAddress.pack(address);
+		if (packed != BtAddress.ANY) {
+			run(context, sIndex.get(key(packed, event)));
+		}
+		run(context, sIndex.get(key(BtAddress.ANY, event)));
+	}
+
+	/**
+	 * Handle {@link #ACTION_RULE_ADD} and {@link #ACTION_RULES_CLEAR}.
+	 */
+	public static synchronized void handleIntent(Context context, Intent intent) {
+		load(context);
+
+		if (ACTION_RULES_CLEAR.equals(intent.getAction())) {
+			sRules.clear();
+		} else {
+			String address = intent.getStringExtra(EXTRA_ADDRESS);
+			long packed = BtAddress.pack(address);
+			int event = indexOf(EVENT_NAMES, intent
+					.getStringExtra(EXTRA_EVENT));
+			int action = indexOf(ACTION_NAMES, intent
+					.getStringExtra(EXTRA_ACTION));
+			if (event < 0 || action < 0
+					|| (address != null && packed == BtAddress.ANY)) {
+				Log.e(TAG, "invalid rule " + intent.getExtras());
+				return;
+			}
+			Rule rule = new Rule(packed, event, action, Math.max(0, intent
+					.getIntExtra(EXTRA_DELAY, 0)));
+			sRules.add(rule);
+			Log.i(TAG, "rule added : " + rule);
+		}
+		store(context);
+		buildIndex();
+	}
+
+	/**
+	 * Schedule the delayed actions recorded by a previous process again.
+	 */
+	public static synchronized void restore(Context context) {
+		if (sRestored) {
+			return;
+		}
+		sRestored = true;
+		for (Map.Entry<String, ?> entry : BtTimers.getPrefs(context).getAll()
+				.entrySet()) {
+			String key = entry.getKey();
+			if (!key.startsWith(PREF_PENDING)
+					|| !(entry.getValue() instanceof Integer)) {
+				continue;
+			}
+			String[] parts = key.substring(PREF_PENDING.length()).split("\\.");
+			try {
+				if (parts.length == 3) {
+					schedulePending(context, key, Integer.parseInt(parts[0]),
+							(Integer) entry.getValue(), Long
+									.parseLong(parts[1]));
+					continue;
+				}
+			} catch (NumberFormatException e) {
+				// dropped below
+			}
+			Log.e(TAG, "restore " + key);
+		}
+	}
+
+	private static void run(Context context, Rule[] rules) {
+		if (rules == null) {
+			return;
+		}
+		for (Rule rule : rules) {
+			Log.i(TAG, "rule : " + rule);
+			if (rule.delaySeconds == 0) {
+				perform(rule.action);
+			} else {
+				long deadline = SystemClock.elapsedRealtime()
+						+ rule.delaySeconds * 1000L;
+				String key = PREF_PENDING + rule.event + "." + deadline + "."
+						+ rule.action;
+				BtTimers.getPrefs(context).edit().putInt(key, rule.action)
+						.apply();
+				schedulePending(context, key, rule.event, rule.action,
+						deadline);
+			}
+		}
+	}
+
+	private static void schedulePending(final Context context,
+			final String key, int event, final int action, long deadline) {
+		TimerWheel.Timeout timeout = BtTimers.schedule(context, new Runnable() {
+			public void run() {
+				BtTimers.getPrefs(context).edit().remove(key).apply();
+				perform(action);
+			}
+		}, deadline - SystemClock.elapsedRealtime());
+		if (event != EVENT_CONNECTED) {
+			prunePending();
+			sPending.add(timeout);
+		}
+	}
+
+	private static void perform(int action) {
+		BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+				.getDefaultAdapter();
+		if (mBluetoothAdapter == null
+				|| mBluetoothAdapter.getState() != BluetoothAdapter.STATE_ON) {
+			return;
+		}
+		Log.i(TAG, "perform : " + ACTION_NAMES[action]);
+		switch (action) {
+		case DO_DISABLE:
+			mBluetoothAdapter.disable();
+			break;
+		case DO_NOT_DISCOVERABLE:
+			if (mBluetoothAdapter.getScanMode() == BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
+				setScanMode(mBluetoothAdapter,
+						BluetoothAdapter.SCAN_MODE_CONNECTABLE);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * BluetoothAdapter.setScanMode() is not part of the public API.
+	 */
+	private static void setScanMode(BluetoothAdapter adapter, int mode) {
+		try {
+			Method setScanMode = BluetoothAdapter.class.getMethod(
+					"setScanMode", int.class);
+			setScanMode.invoke(adapter, mode);
+		} catch (Exception e) {
+			Log.e(TAG, "setScanMode " + e);
+		}
+	}
+
+	private static void cancelPending(Context context) {
+		if (sPending.isEmpty()) {
+			return;
+		}
+		for (TimerWheel.Timeout timeout : sPending) {
+			timeout.cancel();
+		}
+		sPending.clear();
+
+		SharedPreferences prefs = BtTimers.getPrefs(context);
+		SharedPreferences.Editor editor = prefs.edit();
+		String connected = PREF_PENDING + EVENT_CONNECTED + ".";
+		for (String key : prefs.getAll().keySet()) {
+			if (key.startsWith(PREF_PENDING) && !key.startsWith(connected)) {
+				editor.remove(key);
+			}
+		}
+		editor.apply();
+	}
+
+	private static void prunePending() {
+		for (int i = sPending.size() - 1; i >= 0; i--) {
+			if (!sPending.get(i).isPending()) {
+				sPending.remove(i);
+			}
+		}
+	}
+
+	private static long key(long address, int event) {
+		return (address << 8) | event;
+	}
+
+	private static int indexOf(String[] names, String name) {
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Read the rules file, once per process.
+	 */
+	private static void load(Context context) {
+		if (sRules != null) {
+			return;
+		}
+		sRules = new ArrayList<Rule>();
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(context
+					.openFileInput(RULES_FILE)));
+			if (in.readInt() == FILE_VERSION) {
+				int count = in.readInt();
+				for (int i = 0; i < count; i++) {
+					long address = in.readLong();
+					int event = in.readByte();
+					int action = in.readByte();
+					int delay = in.readInt();
+					if (event >= 0 && event < EVENT_NAMES.length
+							&& action >= 0 && action < ACTION_NAMES.length) {
+						sRules.add(new Rule(address, event, action, delay));
+					}
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// no rules yet
+		} catch (IOException e) {
+			Log.e(TAG, "load " + e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+		buildIndex();
+	}
+
+	private static void store(Context context) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(context
+					.openFileOutput(RULES_FILE, Context.MODE_PRIVATE)));
+			out.writeInt(FILE_VERSION);
+			out.writeInt(sRules.size());
+			for (Rule rule : sRules) {
+				out.writeLong(rule.address);
+				out.writeByte(rule.event);
+				out.writeByte(rule.action);
+				out.writeInt(rule.delaySeconds);
+			}
+		} catch (IOException e) {
+			Log.e(TAG, "store " + e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	private static void buildIndex() {
+		Map<Long, List<Rule>> buckets = new HashMap<Long, List<Rule>>();
+		for (Rule rule : sRules) {
+			Long key = Long.valueOf(key(rule.address, rule.event));
+			List<Rule> bucket = buckets.get(key);
+			if (bucket == null) {
+				bucket = new ArrayList<Rule>(1);
+				buckets.put(key, bucket);
+			}
+			bucket.add(rule);
+		}
+
+		sIndex = new HashMap<Long, Rule[]>(buckets.size() * 2);
+		for (Map.Entry<Long, List<Rule>> entry : buckets.entrySet()) {
+			sIndex.put(entry.getKey(), entry.getValue().toArray(NONE));
+		}
+	}
+}
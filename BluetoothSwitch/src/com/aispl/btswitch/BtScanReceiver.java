@@ -0,0 +1,29 @@
+package com.aispl.btswitch;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * Forwards the discovery broadcasts to {@link BtAdvWidgetUpdateService}. The
+ * service only registers it while a scan started from the widget runs, so
+ * discoveries of other apps do not wake the process.
+ */
+public class BtScanReceiver extends BroadcastReceiver {
+
+	public static IntentFilter getFilter() {
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(BluetoothDevice.ACTION_FOUND);
+		filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
+		return filter;
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		BtAdvWidgetUpdateService.handleOnReceive(intent);
+		context.startService(new Intent(context, BtAdvWidgetUpdateService.class));
+	}
+}
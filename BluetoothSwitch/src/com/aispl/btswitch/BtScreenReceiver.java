@@ -0,0 +1,28 @@
+package com.aispl.btswitch;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+
+/**
+ * Forwards screen on / off and unlock broadcasts to
+ * {@link BtAdvWidgetUpdateService}. Screen broadcasts are only delivered to
+ * registered receivers, so the service registers this one at runtime.
+ */
+public class BtScreenReceiver extends BroadcastReceiver {
+
+	public static IntentFilter getFilter() {
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_SCREEN_ON);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		filter.addAction(Intent.ACTION_USER_PRESENT);
+		return filter;
+	}
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		BtAdvWidgetUpdateService.handleOnReceive(intent);
+		context.startService(new Intent(context, BtAdvWidgetUpdateService.class));
+	}
+}
@@ -0,0 +1,184 @@
+package com.aispl.btswitch;
+
+import java.util.List;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+/**
+ * Read-only view of {@link BtWidgetState} for other apps, so they can observe
+ * the adapter instead of polling it themselves.
+ * <ul>
+ * <li><code>content://com.aispl.btswitch.state/adapter</code> - one row with
+ * the adapter state, name, scan mode and number of connected devices, -1 if a
+ * device is connected that is not known, see
+ * {@link BtWidgetState#getConnectedDeviceCount()}</li>
+ * <li><code>content://com.aispl.btswitch.state/devices</code> - one row per
+ * known connected remote device</li>
+ * <li><code>content://com.aispl.btswitch.state/stats</code> - one row with
+ * the update and render counters of the advanced widget, see
+ * {@link BtRenderStats}</li>
+ * </ul>
+ * Rows are served from memory and only rebuilt when the state version
+ * changed. Observers of {@link #CONTENT_URI} are notified by the update
+ * service whenever the state changes.
+ */
+public class BtStateProvider extends ContentProvider {
+
+	public static final String AUTHORITY = "com.aispl.btswitch.state";
+
+	public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY);
+
+	public static final Uri ADAPTER_URI = Uri.withAppendedPath(CONTENT_URI,
+			"adapter");
+
+	public static final Uri DEVICES_URI = Uri.withAppendedPath(CONTENT_URI,
+			"devices");
+
+	public static final Uri STATS_URI = Uri.withAppendedPath(CONTENT_URI,
+			"stats");
+
+	/* columns of ADAPTER_URI */
+	public static final String STATE = "state";
+	public static final String NAME = "name";
+	public static final String SCAN_MODE = "scan_mode";
+	/** number of connected devices, -1 if unknown */
+	public static final String CONNECTED_COUNT = "connected_count";
+
+	/* columns of DEVICES_URI */
+	public static final String ID = "_id";
+	public static final String ADDRESS = "address";
+
+	/* columns of STATS_URI */
+	public static final String UPDATES = "updates";
+	public static final String RENDERS = "renders";
+	public static final String BINDER_CALLS = "binder_calls";
+	public static final String SUPPRESSED = "suppressed";
+
+	private static final String[] ADAPTER_COLUMNS = { STATE, NAME, SCAN_MODE,
+			CONNECTED_COUNT };
+
+	private static final String[] DEVICES_COLUMNS = { ID, ADDRESS, NAME };
+
+	private static final String[] STATS_COLUMNS = { UPDATES, RENDERS,
+			BINDER_CALLS, SUPPRESSED };
+
+	private static final int MATCH_ADAPTER = 1;
+	private static final int MATCH_DEVICES = 2;
+	private static final int MATCH_STATS = 3;
+
+	private static final UriMatcher sMatcher = new UriMatcher(
+			UriMatcher.NO_MATCH);
+	static {
+		sMatcher.addURI(AUTHORITY, "adapter", MATCH_ADAPTER);
+		sMatcher.addURI(AUTHORITY, "devices", MATCH_DEVICES);
+		sMatcher.addURI(AUTHORITY, "stats", MATCH_STATS);
+	}
+
+	/* rows of the last snapshot and the state version they belong to */
+	private Object[] adapterRow = null;
+	private Object[][] deviceRows = null;
+	private int rowsVersion = -1;
+
+	/**
+	 * Tell observers of {@link #CONTENT_URI} that the state changed.
+	 */
+	public static void notifyChange(Context context) {
+		context.getContentResolver().notifyChange(CONTENT_URI, null);
+	}
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection,
+			String[] selectionArgs, String sortOrder) {
+		int match = sMatcher.match(uri);
+		if (match == UriMatcher.NO_MATCH) {
+			throw new IllegalArgumentException("Unknown URI " + uri);
+		}
+
+		MatrixCursor cursor;
+		if (match == MATCH_STATS) {
+			// counters change with every render, not cached and not notified
+			cursor = new MatrixCursor(STATS_COLUMNS, 1);
+			cursor.addRow(new Object[] { BtRenderStats.getUpdates(),
+					BtRenderStats.getRenders(),
+					BtRenderStats.getBinderCalls(),
+					BtRenderStats.getSuppressed() });
+			return cursor;
+		}
+		synchronized (this) {
+			snapshot();
+			if (match == MATCH_ADAPTER) {
+				cursor = new MatrixCursor(ADAPTER_COLUMNS, 1);
+				cursor.addRow(adapterRow);
+			} else {
+				cursor = new MatrixCursor(DEVICES_COLUMNS, deviceRows.length);
+				for (Object[] row : deviceRows) {
+					cursor.addRow(row);
+				}
+			}
+		}
+		cursor.setNotificationUri(getContext().getContentResolver(),
+				CONTENT_URI);
+		return cursor;
+	}
+
+	/**
+	 * Rebuild the cached rows if the state changed since the last query.
+	 */
+	private void snapshot() {
+		BtWidgetState.init();
+		int version = BtWidgetState.getVersion();
+		if (version == rowsVersion) {
+			return;
+		}
+		List<String[]> devices = BtWidgetState.getConnectedDevices();
+		adapterRow = new Object[] { BtWidgetState.getBtState(),
+				BtWidgetState.getAdaptorName(), BtWidgetState.getScanMode(),
+				BtWidgetState.getConnectedDeviceCount() };
+		deviceRows = new Object[devices.size()][];
+		for (int i = 0; i < deviceRows.length; i++) {
+			String[] device = devices.get(i);
+			deviceRows[i] = new Object[] { i, device[0], device[1] };
+		}
+		rowsVersion = version;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		switch (sMatcher.match(uri)) {
+		case MATCH_ADAPTER:
+			return "vnd.android.cursor.item/vnd.aispl.btswitch.adapter";
+		case MATCH_DEVICES:
+			return "vnd.android.cursor.dir/vnd.aispl.btswitch.device";
+		case MATCH_STATS:
+			return "vnd.android.cursor.item/vnd.aispl.btswitch.stats";
+		}
+		return null;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException("read-only");
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection,
+			String[] selectionArgs) {
+		throw new UnsupportedOperationException("read-only");
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("read-only");
+	}
+}
@@ -8,10 +8,22 @@ public class BtSwitchAdvWidget extends AppWidgetProvider {
 
 	@Override
 	public void onReceive(Context context, Intent intent) {
+		if (BtControlReceiver.isControlAction(intent.getAction())) {
+			// only accepted from apps holding BtControlReceiver.PERMISSION
+			return;
+		}
+		long t = BtTrace.begin();
 
 		super.onReceive(context, intent);
+
+		if (BtTimers.ACTION_TIMER_ALARM.equals(intent.getAction())) {
+			// until the update thread ran the timers
+			BtTimers.acquireWakeLock(context);
+		}
 		
 		BtAdvWidgetUpdateService.handleOnReceive(intent);
 		context.startService(new Intent(context, BtAdvWidgetUpdateService.class));
+
+		BtTrace.end(BtTrace.RECEIVE, t);
 	}
 }
@@ -0,0 +1,108 @@
+package com.aispl.btswitch;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.widget.RemoteViews;
+
+/**
+ * Scrollable widget listing the bonded devices and whether they are
+ * connected. The rows come from {@link BtDeviceListService}.
+ */
+public class BtSwitchListWidget extends AppWidgetProvider {
+
+	/** Address of the tapped device in the click intent of a row. */
+	public static final String EXTRA_ADDRESS = "address";
+
+	@Override
+	public void onReceive(Context context, Intent intent) {
+
+		super.onReceive(context, intent);
+
+		String action = intent.getAction();
+		boolean changed = false;
+
+		// Device paired or unpaired, reload the list
+		if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(action)) {
+			BtBondCache.invalidate();
+			changed = true;
+		}
+
+		// Connection of a single device changed, only its row is rebuilt
+		if (BluetoothDevice.ACTION_ACL_CONNECTED.equals(action)
+				|| BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(action)) {
+			BluetoothDevice btD = (BluetoothDevice) intent
+					.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			if (btD != null) {
+				changed = BtBondCache.setConnected(btD.getAddress(),
+						BluetoothDevice.ACTION_ACL_CONNECTED.equals(action));
+			}
+		}
+
+		if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
+			int btState = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+					BluetoothAdapter.ERROR);
+			// Bluetooth switched off
+			if (btState == BluetoothAdapter.STATE_OFF) {
+				BtBondCache.clearConnected();
+				changed = true;
+			}
+			// Bluetooth switched on, the bonded devices can be read now
+			if (btState == BluetoothAdapter.STATE_ON) {
+				BtBondCache.invalidate();
+				changed = true;
+			}
+		}
+
+		if (changed) {
+			notifyDataChanged(context);
+		}
+	}
+
+	/**
+	 * Make all instances ask {@link BtDeviceListService} for their rows
+	 * again.
+	 */
+	public static void notifyDataChanged(Context context) {
+		AppWidgetManager appWidgetManager = AppWidgetManager
+				.getInstance(context);
+		int[] appWidgetIds = appWidgetManager.getAppWidgetIds(new ComponentName(
+				context, BtSwitchListWidget.class));
+		if (appWidgetIds.length > 0) {
+			appWidgetManager.notifyAppWidgetViewDataChanged(appWidgetIds,
+					R.id.deviceList);
+		}
+	}
+
+	@Override
+	public void onUpdate(Context context, AppWidgetManager appWidgetManager,
+			int[] appWidgetIds) {
+		for (int appWidgetId : appWidgetIds) {
+			RemoteViews remoteView = new RemoteViews(context.getPackageName(),
+					R.layout.bt_switch_widget_list_layout);
+
+			// one adapter per widget instance, the data uri keeps them apart
+			Intent adapter = new Intent(context, BtDeviceListService.class);
+			adapter.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+			adapter.setData(Uri.parse(adapter.toUri(Intent.URI_INTENT_SCHEME)));
+			remoteView.setRemoteAdapter(R.id.deviceList, adapter);
+			remoteView.setEmptyView(R.id.deviceList, R.id.emptyView);
+
+			// tapping a device opens the bluetooth settings
+			Intent btSettings = new Intent();
+			btSettings
+					.setAction(android.provider.Settings.ACTION_BLUETOOTH_SETTINGS);
+			remoteView.setPendingIntentTemplate(R.id.deviceList, PendingIntent
+					.getActivity(context, 0, btSettings, 0));
+
+			appWidgetManager.updateAppWidget(appWidgetId, remoteView);
+		}
+		super.onUpdate(context, appWidgetManager, appWidgetIds);
+	}
+}
@@ -0,0 +1,155 @@
+package com.aispl.btswitch;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+/**
+ * Process wide timers of the widgets. All timers share one
+ * {@link TimerWheel}, which is backed by at most one outstanding system
+ * alarm. Re-arming or cancelling a timer only touches the wheel; the alarm is
+ * only replaced if a timer is due before it. An alarm that finds nothing to
+ * do is simply not renewed.
+ * <p>
+ * The wheel only lives in memory, and the process may be killed between two
+ * alarms. Owners of timers that have to survive this record them in
+ * {@link #getPrefs(Context)} and schedule them again when
+ * {@link BtAdvWidgetUpdateService} starts in a new process.
+ */
+public final class BtTimers {
+	public static final String ACTION_TIMER_ALARM = "BTSwitchTimerAlarm";
+
+	static final long TICK_MILLIS = 15 * 1000;
+
+	private static final int WHEEL_SIZE = 64;
+
+	private static final String PREFS_NAME = "timers";
+
+	/**
+	 * Boot time (wall clock) the recorded timers belong to.
+	 */
+	private static final String PREF_BOOT = "boot";
+
+	/**
+	 * Tolerance when comparing boot times, the wall clock may be adjusted.
+	 */
+	private static final long BOOT_SLACK_MILLIS = 60 * 1000;
+
+	private static boolean sPrefsChecked = false;
+
+	/**
+	 * Longest time an alarm keeps the CPU awake, in case its intent is never
+	 * handled.
+	 */
+	private static final long WAKE_LOCK_TIMEOUT_MILLIS = 60 * 1000;
+
+	private static PowerManager.WakeLock sWakeLock = null;
+
+	private static TimerWheel sWheel = null;
+
+	/**
+	 * Time of the outstanding alarm (elapsed realtime), -1 if none.
+	 */
+	private static long sAlarmAt = -1;
+
+	private BtTimers() {
+	}
+
+	/**
+	 * Run <code>task</code> on the update thread once <code>delayMillis</code>
+	 * have elapsed (with a resolution of {@link #TICK_MILLIS}).
+	 */
+	public static synchronized TimerWheel.Timeout schedule(Context context,
+			Runnable task, long delayMillis) {
+		long now = SystemClock.elapsedRealtime();
+		TimerWheel.Timeout timeout = getWheel(now).schedule(task, delayMillis,
+				now);
+		setAlarm(context);
+		return timeout;
+	}
+
+	/**
+	 * Handle {@link #ACTION_TIMER_ALARM}: run all expired timers and set the
+	 * alarm for the next one.
+	 */
+	public static synchronized void onAlarm(Context context) {
+		long now = SystemClock.elapsedRealtime();
+		sAlarmAt = -1;
+		getWheel(now).advance(now);
+		setAlarm(context);
+	}
+
+	/**
+	 * Keep the CPU awake from the receive of {@link #ACTION_TIMER_ALARM} until
+	 * the update thread handled it, the alarm itself only does so during
+	 * onReceive(). Released by {@link #releaseWakeLock()}.
+	 */
+	public static synchronized void acquireWakeLock(Context context) {
+		if (sWakeLock == null) {
+			PowerManager powerManager = (PowerManager) context
+					.getSystemService(Context.POWER_SERVICE);
+			sWakeLock = powerManager.newWakeLock(
+					PowerManager.PARTIAL_WAKE_LOCK, "BtSwitch:timers");
+			sWakeLock.setReferenceCounted(false);
+		}
+		sWakeLock.acquire(WAKE_LOCK_TIMEOUT_MILLIS);
+	}
+
+	public static synchronized void releaseWakeLock() {
+		if (sWakeLock != null && sWakeLock.isHeld()) {
+			sWakeLock.release();
+		}
+	}
+
+	/**
+	 * Preferences to record timers in, deadlines are elapsed realtime. They
+	 * are cleared after a reboot, which drops the alarm as well.
+	 */
+	public static synchronized SharedPreferences getPrefs(Context context) {
+		SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME,
+				Context.MODE_PRIVATE);
+		if (!sPrefsChecked) {
+			sPrefsChecked = true;
+			long boot = System.currentTimeMillis()
+					- SystemClock.elapsedRealtime();
+			if (Math.abs(prefs.getLong(PREF_BOOT, 0) - boot) > BOOT_SLACK_MILLIS) {
+				prefs.edit().clear().putLong(PREF_BOOT, boot).commit();
+			}
+		}
+		return prefs;
+	}
+
+	private static TimerWheel getWheel(long now) {
+		if (sWheel == null) {
+			sWheel = new TimerWheel(TICK_MILLIS, WHEEL_SIZE, now);
+		}
+		return sWheel;
+	}
+
+	private static void setAlarm(Context context) {
+		long next = sWheel.nextExpiry();
+		if (next < 0) {
+			return;
+		}
+		if (sAlarmAt >= 0 && sAlarmAt <= next) {
+			// the outstanding alarm fires first and will set the next one
+			return;
+		}
+
+		Intent alarm = new Intent(context, BtSwitchAdvWidget.class);
+		alarm.setAction(ACTION_TIMER_ALARM);
+		PendingIntent pendingIntent = PendingIntent.getBroadcast(context, 0,
+				alarm, 0);
+
+		// an alarm with an equal PendingIntent replaces the previous one
+		AlarmManager alarmManager = (AlarmManager) context
+				.getSystemService(Context.ALARM_SERVICE);
+		alarmManager.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, next,
+				pendingIntent);
+		sAlarmAt = next;
+	}
+}
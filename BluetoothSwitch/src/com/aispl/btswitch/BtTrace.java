@@ -0,0 +1,163 @@
+package com.aispl.btswitch;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import android.os.Process;
+
+/**
+ * Optional span recorder for the widget update pipeline. Spans are kept in a
+ * fixed size ring buffer that is allocated when tracing is started and can be
+ * exported as Chrome / Perfetto trace-event JSON. While tracing is off
+ * {@link #begin()} and {@link #end(int, long)} only read a flag.
+ * <p>
+ * Tracing is controlled with explicit broadcasts to {@link BtControlReceiver}
+ * from an app signed with the same key: {@link #ACTION_TRACE_START}, followed
+ * by {@link #ACTION_TRACE_DUMP} once the interesting updates happened.
+ */
+public final class BtTrace {
+
+	public static final String ACTION_TRACE_START = "BTSwitchTraceStart";
+
+	public static final String ACTION_TRACE_STOP = "BTSwitchTraceStop";
+
+	public static final String ACTION_TRACE_DUMP = "BTSwitchTraceDump";
+
+	/* span names, index into NAMES */
+	public static final int RECEIVE = 0;
+	public static final int ENQUEUE = 1;
+	public static final int DEQUEUE = 2;
+	public static final int HANDLER = 3;
+	public static final int VIEW_BUILD = 4;
+	public static final int UPDATE_APP_WIDGET = 5;
+
+	private static final String[] NAMES = { "receive", "enqueue", "dequeue",
+			"handler", "viewBuild", "updateAppWidget" };
+
+	private static final int CAPACITY = 4096;
+
+	private static volatile boolean sEnabled = false;
+
+	private static final Object sLock = new Object();
+
+	/* ring buffer, one span per index */
+	private static byte[] sSpan = null;
+	private static long[] sStart = null;
+	private static long[] sDuration = null;
+	private static int[] sTid = null;
+
+	private static int sNext = 0;
+	private static int sCount = 0;
+
+	private BtTrace() {
+	}
+
+	/**
+	 * Start recording, discarding spans recorded before.
+	 */
+	public static void start() {
+		synchronized (sLock) {
+			if (sSpan == null) {
+				sSpan = new byte[CAPACITY];
+				sStart = new long[CAPACITY];
+				sDuration = new long[CAPACITY];
+				sTid = new int[CAPACITY];
+			}
+			sNext = 0;
+			sCount = 0;
+			sEnabled = true;
+		}
+	}
+
+	/**
+	 * Stop recording, recorded spans are kept for {@link #export(Writer)}.
+	 */
+	public static void stop() {
+		sEnabled = false;
+	}
+
+	/**
+	 * @return begin timestamp to be passed to {@link #end(int, long)}, 0 if
+	 *         tracing is off
+	 */
+	public static long begin() {
+		return sEnabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Record a span that started at <code>begin</code> and ends now.
+	 */
+	public static void end(int span, long begin) {
+		if (!sEnabled || begin == 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		int tid = Process.myTid();
+		synchronized (sLock) {
+			if (sSpan == null) {
+				return;
+			}
+			sSpan[sNext] = (byte) span;
+			sStart[sNext] = begin;
+			sDuration[sNext] = now - begin;
+			sTid[sNext] = tid;
+			sNext = (sNext + 1) % CAPACITY;
+			if (sCount < CAPACITY) {
+				sCount++;
+			}
+		}
+	}
+
+	/**
+	 * Write the recorded spans, oldest first, as trace-event JSON.
+	 */
+	public static void export(Writer out) throws IOException {
+		// copy the events, so the update thread is not blocked by the I/O
+		byte[] span;
+		long[] start;
+		long[] duration;
+		int[] tid;
+		synchronized (sLock) {
+			int count = sSpan != null ? sCount : 0;
+			span = new byte[count];
+			start = new long[count];
+			duration = new long[count];
+			tid = new int[count];
+			int first = (sNext - count + CAPACITY) % CAPACITY;
+			for (int i = 0; i < count; i++) {
+				int idx = (first + i) % CAPACITY;
+				span[i] = sSpan[idx];
+				start[i] = sStart[idx];
+				duration[i] = sDuration[idx];
+				tid[i] = sTid[idx];
+			}
+		}
+
+		int pid = Process.myPid();
+		out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+		for (int i = 0; i < span.length; i++) {
+			if (i > 0) {
+				out.write(',');
+			}
+			out.write("\n{\"name\":\"");
+			out.write(NAMES[span[i]]);
+			out.write("\",\"cat\":\"btswitch\",\"ph\":\"X\",\"ts\":");
+			writeMicros(out, start[i]);
+			out.write(",\"dur\":");
+			writeMicros(out, duration[i]);
+			out.write(",\"pid\":");
+			out.write(Integer.toString(pid));
+			out.write(",\"tid\":");
+			out.write(Integer.toString(tid[i]));
+			out.write('}');
+		}
+		out.write("\n]}\n");
+	}
+
+	private static void writeMicros(Writer out, long nanos) throws IOException {
+		out.write(Long.toString(nanos / 1000));
+		out.write('.');
+		String fraction = Long.toString(1000 + nanos % 1000);
+		out.write(fraction, 1, 3);
+	}
+}
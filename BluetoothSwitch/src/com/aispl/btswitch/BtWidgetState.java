@@ -0,0 +1,218 @@
+package com.aispl.btswitch;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothProfile;
+
+/**
+ * Bluetooth state as maintained by {@link BtAdvWidgetUpdateService} from the
+ * broadcasts it handles. Every change bumps {@link #getVersion()}, so readers
+ * like {@link BtStateProvider} can tell cheaply whether anything changed.
+ */
+public final class BtWidgetState {
+
+	/**
+	 * Number of connected devices while a device is connected that is not
+	 * known from an ACL broadcast, see {@link #getConnectedDeviceCount()}.
+	 */
+	public static final int UNKNOWN = -1;
+
+	private static boolean sInitialized = false;
+
+	private static int sBtState = BluetoothAdapter.ERROR;
+
+	private static String sAdaptorName = null;
+
+	private static int sScanMode = BluetoothAdapter.ERROR;
+
+	/**
+	 * End of discoverable mode (elapsed realtime), 0 if not discoverable.
+	 */
+	private static long sDiscoverableUntil = 0;
+
+	/**
+	 * Length of the current discoverable period in seconds.
+	 */
+	private static int sDiscoverableTimeout = 0;
+
+	/**
+	 * Connected remote devices, address to name, in order of connection.
+	 */
+	private static Map<String, String> sDevices = new LinkedHashMap<String, String>();
+
+	/**
+	 * Set while a profile reports a connection that may belong to a device
+	 * not in {@link #sDevices}, i.e. one connected before this process
+	 * started.
+	 */
+	private static boolean sUnknownConnected = false;
+
+	private static int sVersion = 0;
+
+	private BtWidgetState() {
+	}
+
+	/**
+	 * Seed the state from the adapter if no broadcast has been seen yet in
+	 * this process. Connected devices can not be queried, they are only known
+	 * from ACL broadcasts; a connected headset or A2DP profile only tells that
+	 * some device is connected.
+	 */
+	public static synchronized void init() {
+		if (sInitialized) {
+			return;
+		}
+		sInitialized = true;
+		BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+				.getDefaultAdapter();
+		if (mBluetoothAdapter != null) {
+			sBtState = mBluetoothAdapter.getState();
+			sAdaptorName = mBluetoothAdapter.getName();
+			sScanMode = mBluetoothAdapter.getScanMode();
+			sUnknownConnected = sBtState == BluetoothAdapter.STATE_ON
+					&& isProfileConnected(mBluetoothAdapter);
+		}
+		sVersion++;
+	}
+
+	public static synchronized int getVersion() {
+		return sVersion;
+	}
+
+	public static synchronized int getBtState() {
+		return sBtState;
+	}
+
+	public static synchronized String getAdaptorName() {
+		return sAdaptorName;
+	}
+
+	public static synchronized int getScanMode() {
+		return sScanMode;
+	}
+
+	public static synchronized long getDiscoverableUntil() {
+		return sDiscoverableUntil;
+	}
+
+	public static synchronized int getDiscoverableTimeout() {
+		return sDiscoverableTimeout;
+	}
+
+	/**
+	 * @return number of connected devices, {@link #UNKNOWN} if a device may be
+	 *         connected that is not known
+	 */
+	public static synchronized int getConnectedDeviceCount() {
+		return sUnknownConnected ? UNKNOWN : sDevices.size();
+	}
+
+	/**
+	 * @return address and name of each connected device
+	 */
+	public static synchronized List<String[]> getConnectedDevices() {
+		List<String[]> devices = new ArrayList<String[]>(sDevices.size());
+		for (Map.Entry<String, String> entry : sDevices.entrySet()) {
+			devices.add(new String[] { entry.getKey(), entry.getValue() });
+		}
+		return devices;
+	}
+
+	public static synchronized void setBtState(int btState) {
+		init();
+		if (sBtState != btState) {
+			sBtState = btState;
+			if (btState == BluetoothAdapter.STATE_OFF) {
+				sDevices.clear();
+			}
+			if (btState == BluetoothAdapter.STATE_OFF
+					|| btState == BluetoothAdapter.STATE_ON) {
+				// connections after switching on are seen as ACL broadcasts
+				sUnknownConnected = false;
+			}
+			sVersion++;
+		}
+	}
+
+	public static synchronized void setAdaptorName(String name) {
+		init();
+		if (name == null ? sAdaptorName != null : !name.equals(sAdaptorName)) {
+			sAdaptorName = name;
+			sVersion++;
+		}
+	}
+
+	public static synchronized void setScanMode(int scanMode) {
+		init();
+		if (sScanMode != scanMode) {
+			sScanMode = scanMode;
+			if (scanMode != BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
+				sDiscoverableUntil = 0;
+				sDiscoverableTimeout = 0;
+			}
+			sVersion++;
+		}
+	}
+
+	/**
+	 * Record the start of a discoverable period.
+	 *
+	 * @param until
+	 *            end of the period (elapsed realtime)
+	 * @param timeoutSeconds
+	 *            length of the period
+	 */
+	public static synchronized void setDiscoverable(long until,
+			int timeoutSeconds) {
+		init();
+		sDiscoverableUntil = until;
+		sDiscoverableTimeout = timeoutSeconds;
+		sVersion++;
+	}
+
+	/**
+	 * @return number of connected devices, see
+	 *         {@link #getConnectedDeviceCount()}
+	 */
+	public static synchronized int deviceConnected(String address, String name) {
+		init();
+		boolean known = sDevices.containsKey(address);
+		String old = sDevices.put(address, name);
+		if (!known || (old == null ? name != null : !old.equals(name))) {
+			sVersion++;
+		}
+		return getConnectedDeviceCount();
+	}
+
+	/**
+	 * @return number of connected devices, see
+	 *         {@link #getConnectedDeviceCount()}
+	 */
+	public static synchronized int deviceDisconnected(String address) {
+		init();
+		if (sDevices.containsKey(address)) {
+			sDevices.remove(address);
+			sVersion++;
+		}
+		if (sUnknownConnected && sDevices.isEmpty()) {
+			// maybe the unknown device went away, ask the profiles again
+			BluetoothAdapter mBluetoothAdapter = BluetoothAdapter
+					.getDefaultAdapter();
+			if (mBluetoothAdapter == null
+					|| !isProfileConnected(mBluetoothAdapter)) {
+				sUnknownConnected = false;
+				sVersion++;
+			}
+		}
+		return getConnectedDeviceCount();
+	}
+
+	private static boolean isProfileConnected(BluetoothAdapter adapter) {
+		return adapter.getProfileConnectionState(BluetoothProfile.HEADSET) == BluetoothProfile.STATE_CONNECTED
+				|| adapter.getProfileConnectionState(BluetoothProfile.A2DP) == BluetoothProfile.STATE_CONNECTED;
+	}
+}
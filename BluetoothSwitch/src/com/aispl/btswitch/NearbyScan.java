@@ -0,0 +1,78 @@
+package com.aispl.btswitch;
+
+/**
+ * Book keeping of a nearby-device scan started from the advanced widget.
+ * Found devices are deduplicated by address, renders are limited to one per
+ * {@link #RENDER_INTERVAL_MILLIS} and the scan has a time and a result budget,
+ * as discovery slows down traffic on existing links.
+ * <p>
+ * Only plain values go in and out (packed addresses, elapsed realtime), so
+ * the scan can be driven without a Bluetooth adapter. Not thread safe, used
+ * from the update thread only.
+ */
+public class NearbyScan {
+
+	public static final long RENDER_INTERVAL_MILLIS = 1000;
+
+	public static final long TIME_BUDGET_MILLIS = 10 * 1000;
+
+	public static final int RESULT_BUDGET = 32;
+
+	private final BtAddressSet found = new BtAddressSet(RESULT_BUDGET);
+
+	private boolean running = false;
+	private long startedAt;
+	private long renderedAt;
+
+	public void start(long now) {
+		found.clear();
+		running = true;
+		startedAt = now;
+		renderedAt = now;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getCount() {
+		return found.size();
+	}
+
+	/**
+	 * Record a found device.
+	 *
+	 * @return true if the widget should be rendered now
+	 */
+	public boolean onFound(long address, long now) {
+		if (!running || !found.add(address)) {
+			return false;
+		}
+		if (now - renderedAt < RENDER_INTERVAL_MILLIS) {
+			return false;
+		}
+		renderedAt = now;
+		return true;
+	}
+
+	/**
+	 * @return true if discovery should be cancelled
+	 */
+	public boolean isOverBudget(long now) {
+		return running
+				&& (found.size() >= RESULT_BUDGET || now - startedAt >= TIME_BUDGET_MILLIS);
+	}
+
+	/**
+	 * End the scan.
+	 *
+	 * @return true if the widget still has to show the final count
+	 */
+	public boolean finish() {
+		if (!running) {
+			return false;
+		}
+		running = false;
+		return true;
+	}
+}
@@ -0,0 +1,187 @@
+package com.aispl.btswitch;
+
+/**
+ * Hashed timer wheel. Timeouts are hashed into a fixed number of slots by
+ * their deadline tick; scheduling and cancelling are O(1) and only touch the
+ * slot lists, so re-arming a timer many times is cheap. The wheel does not
+ * keep time itself - callers pass the current time (normally
+ * {@link android.os.SystemClock#elapsedRealtime()}) and call
+ * {@link #advance(long)} when it is time to look for expired timeouts.
+ * <p>
+ * Not thread safe, callers must synchronize.
+ */
+public class TimerWheel {
+
+	/**
+	 * Handle to a scheduled task.
+	 */
+	public static final class Timeout {
+		private final Runnable task;
+		private final long deadline;
+		private long rounds;
+		private int slot;
+		private Timeout prev;
+		private Timeout next;
+		private TimerWheel wheel;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public long getDeadline() {
+			return deadline;
+		}
+
+		/**
+		 * @return true if the timeout is still waiting to fire
+		 */
+		public boolean isPending() {
+			return wheel != null;
+		}
+
+		/**
+		 * Remove the timeout from its wheel. Does nothing if it already fired
+		 * or was cancelled.
+		 */
+		public void cancel() {
+			if (wheel != null) {
+				wheel.unlink(this);
+			}
+		}
+	}
+
+	private final long tickMillis;
+	private final Timeout[] slots;
+	private final int mask;
+
+	/** Last tick that has been processed by {@link #advance(long)}. */
+	private long currentTick;
+	private int size = 0;
+
+	/**
+	 * @param tickMillis
+	 *            resolution of the wheel
+	 * @param wheelSize
+	 *            number of slots, rounded up to a power of two
+	 * @param now
+	 *            current time in milliseconds
+	 */
+	public TimerWheel(long tickMillis, int wheelSize, long now) {
+		int n = 1;
+		while (n < wheelSize) {
+			n <<= 1;
+		}
+		this.tickMillis = tickMillis;
+		this.slots = new Timeout[n];
+		this.mask = n - 1;
+		this.currentTick = now / tickMillis;
+	}
+
+	public long getTickMillis() {
+		return tickMillis;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Schedule a task to run once <code>delayMillis</code> have elapsed.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis, long now) {
+		long deadline = now + Math.max(0, delayMillis);
+		Timeout timeout = new Timeout(task, deadline);
+
+		// never hash into a tick that has already been processed
+		long tick = Math.max(ticksFor(deadline), currentTick + 1);
+		timeout.rounds = (tick - currentTick - 1) / slots.length;
+
+		int idx = (int) (tick & mask);
+		timeout.slot = idx;
+		timeout.next = slots[idx];
+		if (slots[idx] != null) {
+			slots[idx].prev = timeout;
+		}
+		slots[idx] = timeout;
+		timeout.wheel = this;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Process every tick up to <code>now</code>, running tasks whose deadline
+	 * has been reached.
+	 *
+	 * @return number of tasks run
+	 */
+	public int advance(long now) {
+		long target = now / tickMillis;
+		int fired = 0;
+		while (currentTick < target && size > 0) {
+			currentTick++;
+			int idx = (int) (currentTick & mask);
+			// unlink all expired timeouts of the slot first, so tasks are free
+			// to schedule or cancel other timeouts while they run
+			Timeout expired = null;
+			Timeout t = slots[idx];
+			while (t != null) {
+				Timeout next = t.next;
+				if (t.rounds <= 0) {
+					unlink(t);
+					t.next = expired;
+					expired = t;
+				} else {
+					t.rounds--;
+				}
+				t = next;
+			}
+			while (expired != null) {
+				Timeout next = expired.next;
+				expired.next = null;
+				expired.task.run();
+				fired++;
+				expired = next;
+			}
+		}
+		currentTick = Math.max(currentTick, target);
+		return fired;
+	}
+
+	/**
+	 * @return the time at which {@link #advance(long)} has to be called next to
+	 *         run the earliest pending timeout (its deadline rounded up to the
+	 *         next tick), or -1 if the wheel is empty
+	 */
+	public long nextExpiry() {
+		long earliest = -1;
+		for (Timeout head : slots) {
+			for (Timeout t = head; t != null; t = t.next) {
+				if (earliest < 0 || t.deadline < earliest) {
+					earliest = t.deadline;
+				}
+			}
+		}
+		return earliest < 0 ? -1 : ticksFor(earliest) * tickMillis;
+	}
+
+	private long ticksFor(long time) {
+		// round up, a timeout never fires before its deadline
+		return (time + tickMillis - 1) / tickMillis;
+	}
+
+	private void unlink(Timeout t) {
+		if (t.prev != null) {
+			t.prev.next = t.next;
+		} else {
+			slots[t.slot] = t.next;
+		}
+		if (t.next != null) {
+			t.next.prev = t.prev;
+		}
+		t.prev = null;
+		t.next = null;
+		t.wheel = null;
+		size--;
+	}
+}